@@ -0,0 +1,41 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Synthetic Myo IMU stream: a slow rotation about a tilted axis at the IMU rate (50 Hz), with the
+ * matching gyro and a gravity-dominated accelerometer. Orientation, gyro and accel of one sample
+ * share the same device timestamp, as with the real Hub.
+ */
+final class FakeMyoSource {
+    public static final long PERIOD_US = 20000;
+
+    private final double rate_; // rad/s
+    private final long period_us_;
+    private long timestamp_;
+    private double angle_ = 0;
+
+    public FakeMyoSource(long start_us, double rate, long period_us) {
+        timestamp_ = start_us;
+        rate_ = rate;
+        period_us_ = period_us;
+    }
+
+    public FakeMyoSource() {
+        this(1000000, 0.5, PERIOD_US);
+    }
+
+    // Feeds one sample into the node's Hub-side callbacks
+    public void emit(MyoNode node) {
+        double s = Math.sin(angle_ / 2);
+        double c = Math.cos(angle_ / 2);
+        node.onOrientationData(timestamp_, 0.6 * s, 0.8 * s, 0, c);
+        node.onGyroscopeData(timestamp_, 0.6 * rate_, 0.8 * rate_, 0);
+        node.onAccelerometerData(timestamp_, 0.01 * s, 0.01 * c, 1.0);
+
+        timestamp_ += period_us_;
+        angle_ += rate_ * period_us_ * 1e-6;
+    }
+
+    public long getTimestamp() {
+        return timestamp_;
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.parameter.ParameterTree;
+import org.ros.node.topic.Publisher;
+import org.ros.node.topic.Subscriber;
+import org.ros.time.TimeProvider;
+import org.ros.time.WallTimeProvider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stand-in ConnectedNode for benchmarks: real message instances, publishers that only count,
+ * parameters from a map, and cancellable loops that are collected instead of started, so the
+ * benchmark drives them on its own thread.
+ */
+final class FakeNode {
+    static final MessageFactory MESSAGE_FACTORY = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+    private final Map<String, Object> params_ = new HashMap<>();
+    private final List<CancellableLoop> loops_ = new ArrayList<>();
+    private final TimeProvider time_provider_ = new WallTimeProvider();
+
+    private long published_ = 0;
+    // Keeps the last message reachable so publishing cannot be optimized away
+    private Object last_message_;
+
+    private final ConnectedNode node_ = proxy(ConnectedNode.class, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getParameterTree":
+                    return parameterTree();
+                case "newPublisher":
+                    return publisher((String) args[1]);
+                case "newSubscriber":
+                    return proxy(Subscriber.class, (p, m, a) -> defaultValue(m.getReturnType()));
+                case "getTopicMessageFactory":
+                    return MESSAGE_FACTORY;
+                case "getCurrentTime":
+                    return time_provider_.getCurrentTime();
+                case "executeCancellableLoop":
+                    loops_.add((CancellableLoop) args[0]);
+                    return null;
+                case "getName":
+                    return GraphName.of("fake_node");
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        }
+    });
+
+    public ConnectedNode node() {
+        return node_;
+    }
+
+    public TimeProvider timeProvider() {
+        return time_provider_;
+    }
+
+    public FakeNode param(String name, Object value) {
+        params_.put(name, value);
+        return this;
+    }
+
+    public long getPublished() {
+        return published_;
+    }
+
+    public Object getLastMessage() {
+        return last_message_;
+    }
+
+    public List<CancellableLoop> getLoops() {
+        return loops_;
+    }
+
+    // A counting publisher of messages of type, as handed out by the node
+    Publisher<?> publisher(String type) {
+        return proxy(Publisher.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "newMessage":
+                    return MESSAGE_FACTORY.newFromType(type);
+                case "publish":
+                    published_++;
+                    last_message_ = a[0];
+                    return null;
+                case "hasSubscribers":
+                    return true;
+                case "getNumberOfSubscribers":
+                    return 1;
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        });
+    }
+
+    // Returns the configured value, otherwise the default passed by the caller
+    private ParameterTree parameterTree() {
+        return proxy(ParameterTree.class, (p, m, a) -> {
+            if (a != null && a.length > 0 && m.getName().startsWith("get")) {
+                Object value = params_.get(a[0].toString());
+                if (value != null) return value;
+                return a.length > 1 ? a[1] : defaultValue(m.getReturnType());
+            }
+            if (m.getName().equals("has")) {
+                return params_.containsKey(a[0].toString());
+            }
+            return defaultValue(m.getReturnType());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeNode.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0.0f;
+        return null;
+    }
+}
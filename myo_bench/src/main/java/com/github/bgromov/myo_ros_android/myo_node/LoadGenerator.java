@@ -0,0 +1,282 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import com.thalmic.myo.Myo;
+
+import org.ros.RosCore;
+import org.ros.message.MessageListener;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.topic.Subscriber;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import geometry_msgs.QuaternionStamped;
+import geometry_msgs.TransformStamped;
+import geometry_msgs.Vector3Stamped;
+import std_msgs.Header;
+import tf2_msgs.TFMessage;
+
+/**
+ * Scaling test: N virtual Myos feeding real MyoNodes, published through an in-process master to
+ * real subscribers, for a series of N. Run with
+ *
+ *   ./gradlew :myo_bench:loadtest -PloadArgs="--myos 1,5,10,20,30 --rate 50 --duration 10"
+ *
+ * All virtual Myos are driven from a single thread, as the Hub delivers all armbands on one
+ * thread. For each N the report gives the achieved publish rate against the nominal one, the
+ * callback-to-subscriber latency, process CPU, heap after GC, live threads and the time until all
+ * nodes publish. --single-node true hosts all of them in one MyoHostNode.
+ */
+public class LoadGenerator {
+    private int[] myos_ = { 1, 2, 5, 10, 20 };
+    private int rate_hz_ = 50;
+    private int warmup_s_ = 3;
+    private int duration_s_ = 10;
+    // All virtual Myos in one MyoHostNode instead of one node each
+    private boolean single_node_ = false;
+
+    // Receives rotation, gyro and accel of every Myo plus /tf, and measures the latency
+    private static class LoadSubscriber extends AbstractNodeMain {
+        private final int myos_;
+        private final LatencyHistogram latency_ = new LatencyHistogram();
+        private final LatencyHistogram tf_latency_ = new LatencyHistogram();
+        private final AtomicLong received_ = new AtomicLong();
+        private final AtomicLong tf_received_ = new AtomicLong();
+        private ConnectedNode node_;
+
+        LoadSubscriber(int myos) {
+            myos_ = myos;
+        }
+
+        @Override
+        public GraphName getDefaultNodeName() {
+            return GraphName.of("myo_bench/load_subscriber");
+        }
+
+        @Override
+        public void onStart(ConnectedNode connectedNode) {
+            node_ = connectedNode;
+            for (int id = 1; id <= myos_; id++) {
+                String ns = "/idsia/myo" + id;
+                Subscriber<QuaternionStamped> rotation = node_.newSubscriber(ns + "/rotation", QuaternionStamped._TYPE);
+                rotation.addMessageListener(msg -> received(msg.getHeader()));
+                for (String topic : new String[] { "/gyro", "/accel" }) {
+                    Subscriber<Vector3Stamped> vector = node_.newSubscriber(ns + topic, Vector3Stamped._TYPE);
+                    vector.addMessageListener(msg -> received(msg.getHeader()));
+                }
+            }
+
+            Subscriber<TFMessage> tf = node_.newSubscriber("/tf", TFMessage._TYPE);
+            tf.addMessageListener(new MessageListener<TFMessage>() {
+                @Override
+                public void onNewMessage(TFMessage msg) {
+                    long now = node_.getCurrentTime().totalNsecs();
+                    for (TransformStamped t : msg.getTransforms()) {
+                        synchronized (tf_latency_) {
+                            tf_latency_.record((now - t.getHeader().getStamp().totalNsecs()) / 1000);
+                        }
+                        tf_received_.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        private void received(Header header) {
+            long now = node_.getCurrentTime().totalNsecs();
+            // One listener thread per connection, the histogram takes a single writer
+            synchronized (latency_) {
+                latency_.record((now - header.getStamp().totalNsecs()) / 1000);
+            }
+            received_.incrementAndGet();
+        }
+    }
+
+    private static class Snapshot {
+        long wall_ns = System.nanoTime();
+        long cpu_ns = processCpuTime();
+        long received;
+        long tf_received;
+        long[] latency = new long[LatencyHistogram.BUCKETS];
+        long[] tf_latency = new long[LatencyHistogram.BUCKETS];
+
+        Snapshot(LoadSubscriber s) {
+            received = s.received_.get();
+            tf_received = s.tf_received_.get();
+            synchronized (s.latency_) {
+                s.latency_.snapshot(latency);
+            }
+            synchronized (s.tf_latency_) {
+                s.tf_latency_.snapshot(tf_latency);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--myos":
+                    String[] values = args[i + 1].split(",");
+                    myos_ = new int[values.length];
+                    for (int k = 0; k < values.length; k++) myos_[k] = Integer.parseInt(values[k].trim());
+                    break;
+                case "--rate":
+                    rate_hz_ = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmup_s_ = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--duration":
+                    duration_s_ = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--single-node":
+                    single_node_ = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        RosCore core = RosCore.newPrivate();
+        core.start();
+        core.awaitStart();
+
+        NodeMainExecutor executor = DefaultNodeMainExecutor.newDefault();
+        NodeConfiguration config = NodeConfiguration.newPrivate(core.getUri());
+
+        TfBroadcaster tf = new TfBroadcaster();
+        executor.execute(tf, config);
+
+        System.out.println("myos  nominal/s  published/s  received/s  dropped  p50_us  p99_us  max_us  tf/s  tf_p99_us  cpu_cores  heap_mb  threads  startup_ms");
+        for (int n : myos_) {
+            step(executor, config, tf, n);
+        }
+
+        executor.shutdown();
+        core.shutdown();
+    }
+
+    private void step(NodeMainExecutor executor, NodeConfiguration config, TfBroadcaster tf, int n) throws Exception {
+        LoadSubscriber subscriber = new LoadSubscriber(n);
+        executor.execute(subscriber, config);
+
+        MyoHostNode host = null;
+        if (single_node_) {
+            host = new MyoHostNode();
+            executor.execute(host, config);
+        }
+
+        long startup_ns = System.nanoTime();
+        List<MyoNode> nodes = new ArrayList<>();
+        List<FakeMyoSource> sources = new ArrayList<>();
+        for (int id = 1; id <= n; id++) {
+            Myo myo = new Myo(String.format("00-00-00-00-00-%02x", id), "virtual" + id);
+            MyoNode node = new MyoNode(myo, id, 0, tf, config.getTimeProvider());
+            nodes.add(node);
+            sources.add(new FakeMyoSource(1000000L * id, 0.5, 1000000L / rate_hz_));
+            if (host != null) {
+                host.add(node);
+            } else {
+                executor.execute(node, config);
+            }
+        }
+        for (MyoNode node : nodes) {
+            while (node.getState() == MyoNode.STATE_ATTACHED) Thread.sleep(1);
+        }
+        startup_ns = System.nanoTime() - startup_ns;
+
+        // The simulated Hub thread
+        ScheduledExecutorService hub = Executors.newSingleThreadScheduledExecutor();
+        hub.scheduleAtFixedRate(() -> {
+            for (int i = 0; i < nodes.size(); i++) {
+                sources.get(i).emit(nodes.get(i));
+            }
+        }, 0, 1000000L / rate_hz_, TimeUnit.MICROSECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup_s_));
+
+        long published = published(nodes);
+        long dropped = dropped(nodes);
+        Snapshot start = new Snapshot(subscriber);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration_s_));
+        Snapshot end = new Snapshot(subscriber);
+        published = published(nodes) - published;
+        dropped = dropped(nodes) - dropped;
+
+        hub.shutdownNow();
+
+        double seconds = (end.wall_ns - start.wall_ns) * 1e-9;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            end.latency[i] -= start.latency[i];
+            end.tf_latency[i] -= start.tf_latency[i];
+        }
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long heap = memory.getHeapMemoryUsage().getUsed();
+
+        System.out.println(String.format("%4d  %9.0f  %11.0f  %10.0f  %7d  %6d  %6d  %6d  %4.0f  %9d  %9.2f  %7.1f  %7d  %10d",
+                n,
+                3.0 * n * rate_hz_,
+                published / seconds,
+                (end.received - start.received) / seconds,
+                dropped,
+                LatencyHistogram.percentile(end.latency, 0.5),
+                LatencyHistogram.percentile(end.latency, 0.99),
+                LatencyHistogram.percentile(end.latency, 1.0),
+                (end.tf_received - start.tf_received) / seconds,
+                LatencyHistogram.percentile(end.tf_latency, 0.99),
+                (end.cpu_ns - start.cpu_ns) / (seconds * 1e9),
+                heap / (1024.0 * 1024.0),
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                TimeUnit.NANOSECONDS.toMillis(startup_ns)));
+
+        if (host != null) {
+            executor.shutdownNodeMain(host);
+        } else {
+            for (MyoNode node : nodes) {
+                executor.shutdownNodeMain(node);
+            }
+        }
+        executor.shutdownNodeMain(subscriber);
+    }
+
+    private static long published(List<MyoNode> nodes) {
+        long n = 0;
+        for (MyoNode node : nodes) n += node.getMessagesPublished();
+        return n;
+    }
+
+    private static long dropped(List<MyoNode> nodes) {
+        long n = 0;
+        for (MyoNode node : nodes) n += node.getSampleRing().getDropped();
+        return n;
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
+    }
+}
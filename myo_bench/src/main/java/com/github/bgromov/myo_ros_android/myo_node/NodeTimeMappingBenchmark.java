@@ -0,0 +1,76 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import com.thalmic.myo.Myo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the clock model as MyoNode uses it, in both timestamp modes: syncToRosTime() with its
+ * state handling and unit conversions on top of the mapper (see TimeMappingBenchmark for the
+ * mapper alone), and myoToRosTime().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeTimeMappingBenchmark {
+    @Param({"true", "false"})
+    public boolean ros_timestamps;
+
+    private MyoNode node_;
+    private long device_us_;
+    private long arrival_ns_;
+    private long jitter_ = 1;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        FakeNode fake = new FakeNode().param("/idsia/myo/use_ros_timestamps", ros_timestamps);
+        TfBroadcaster tf = new TfBroadcaster();
+        tf.onStart(fake.node());
+
+        node_ = new MyoNode(new Myo("00-11-22-33-44-55", "bench"), 1, 0, tf, fake.timeProvider());
+        node_.onStart(fake.node());
+
+        device_us_ = 1000000;
+        arrival_ns_ = 1500000000000000000L;
+
+        // Past the minimum span, so that every sync runs with a fitted model
+        while (!node_.isTimeSynced() || !node_.getTimeMapper().isFitted() && !ros_timestamps) {
+            next();
+        }
+    }
+
+    // 50 Hz samples, 20 ppm skew and up to 8 ms of delivery jitter
+    private boolean next() {
+        device_us_ += FakeMyoSource.PERIOD_US;
+        jitter_ = (jitter_ * 1103515245 + 12345) & 0x7fffffff;
+        long arrival_us = device_us_ + device_us_ / 50000 + jitter_ % 8000;
+        return node_.syncToRosTime(device_us_, arrival_ns_ + arrival_us * 1000);
+    }
+
+    @Benchmark
+    public long sync() {
+        next();
+        return node_.myoToRosTime(device_us_, arrival_ns_);
+    }
+
+    @Benchmark
+    public long map() {
+        return node_.myoToRosTime(device_us_, arrival_ns_);
+    }
+}
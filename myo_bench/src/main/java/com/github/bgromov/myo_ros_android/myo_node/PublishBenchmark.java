@@ -0,0 +1,79 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import com.thalmic.myo.Myo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of one Myo IMU sample: the orientation, gyro and accel callbacks on the Hub
+ * side, then draining and publishing them (three messages and one /tf transform) on the node side.
+ *
+ * Both sides run on the benchmark thread, so the score is the throughput of a single armband with
+ * an idle consumer; gc.alloc.rate.norm is the garbage produced per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PublishBenchmark {
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    @Param({"true", "false"})
+    public boolean ros_timestamps;
+
+    private FakeNode fake_;
+    private MyoNode node_;
+    private TfBroadcaster tf_;
+    private FakeMyoSource source_;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fake_ = new FakeNode()
+                .param("/idsia/myo/pooled_messages", pooled)
+                .param("/idsia/myo/use_ros_timestamps", ros_timestamps);
+
+        tf_ = new TfBroadcaster();
+        tf_.onStart(fake_.node());
+
+        node_ = new MyoNode(new Myo("00-11-22-33-44-55", "bench"), 1, 0, tf_, fake_.timeProvider());
+        node_.onStart(fake_.node());
+
+        // Feed samples until the clock offset estimate is available
+        source_ = new FakeMyoSource();
+        while (!node_.isTimeSynced()) {
+            source_.emit(node_);
+            node_.publishPending(Integer.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public int sample() {
+        source_.emit(node_);
+        return node_.publishPending(Integer.MAX_VALUE);
+    }
+
+    // Hub side only: timestamping and queueing, the ring is drained without publishing
+    @Benchmark
+    public int offer() {
+        source_.emit(node_);
+        return node_.getSampleRing().drain(DISCARD, Integer.MAX_VALUE);
+    }
+
+    private static final SampleRing.Consumer DISCARD = (kind, timestamp, arrival_ns, a, b, c, d) -> { };
+}
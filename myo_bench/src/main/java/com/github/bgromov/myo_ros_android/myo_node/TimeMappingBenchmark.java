@@ -0,0 +1,62 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the clock model: adding a (device, arrival) pair, which refits the drift line every
+ * stride samples, and mapping a device timestamp to ROS time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeMappingBenchmark {
+    private DriftTimeMapper mapper_;
+    private long device_us_;
+    private long arrival_us_;
+    private long jitter_ = 1;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mapper_ = new DriftTimeMapper();
+        device_us_ = 1000000;
+        arrival_us_ = 1500000000000000L;
+
+        // Fill the window past the minimum span so that every add() runs with a fitted model
+        while (!mapper_.isFitted()) {
+            next();
+        }
+    }
+
+    // 50 Hz samples, 20 ppm skew and up to 8 ms of delivery jitter
+    private void next() {
+        device_us_ += FakeMyoSource.PERIOD_US;
+        jitter_ = (jitter_ * 1103515245 + 12345) & 0x7fffffff;
+        mapper_.add(device_us_, arrival_us_ + device_us_ + device_us_ / 50000 + jitter_ % 8000);
+    }
+
+    @Benchmark
+    public long add() {
+        next();
+        return mapper_.map(device_us_);
+    }
+
+    @Benchmark
+    public long map() {
+        return mapper_.map(device_us_);
+    }
+}
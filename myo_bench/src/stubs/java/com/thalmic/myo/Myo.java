@@ -0,0 +1,32 @@
+package com.thalmic.myo;
+
+/**
+ * Stand-in for the Myo SDK device handle on the plain JVM. Only what myo_node uses.
+ */
+public class Myo {
+    public enum VibrationType { SHORT, MEDIUM, LONG }
+
+    public enum UnlockType { TIMED, HOLD }
+
+    private final String mac_;
+    private final String name_;
+
+    public Myo(String mac, String name) {
+        mac_ = mac;
+        name_ = name;
+    }
+
+    public String getMacAddress() {
+        return mac_;
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public void vibrate(VibrationType type) {
+    }
+
+    public void unlock(UnlockType type) {
+    }
+}
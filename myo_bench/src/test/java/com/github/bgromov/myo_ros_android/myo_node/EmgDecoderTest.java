@@ -0,0 +1,118 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmgDecoderTest {
+    private static final long T0_NS = 1500000000000000000L;
+    private static final long LATENCY_NS = 15000000;
+    private static final long SAMPLE_NS = EmgDecoder.SAMPLE_PERIOD_US * 1000;
+
+    // Two back-to-back notifications of the EMG characteristics, 2 x 8 signed channels each
+    private static final byte[] CAPTURE = {
+            -3, 2, 5, -1, 0, 1, -7, 4,      12, -9, 3, 0, -2, 6, 1, -5,
+            127, -128, 0, 1, -1, 64, -64, 33,   8, 8, -8, -8, 16, -16, 32, -32,
+    };
+
+    private final List<Long> stamps_ = new ArrayList<>();
+    private final List<byte[]> samples_ = new ArrayList<>();
+
+    private EmgDecoder decoder(int batch) {
+        return new EmgDecoder(batch, (stamps, samples, count) -> {
+            for (int i = 0; i < count; i++) {
+                stamps_.add(stamps[i]);
+                byte[] sample = new byte[EmgDecoder.CHANNELS];
+                System.arraycopy(samples, i * EmgDecoder.CHANNELS, sample, 0, EmgDecoder.CHANNELS);
+                samples_.add(sample);
+            }
+        });
+    }
+
+    @Test
+    public void decodesCapturedPackets() {
+        EmgDecoder decoder = decoder(3);
+        assertTrue(decoder.decode(CAPTURE, 0, CAPTURE.length, T0_NS));
+        assertEquals(3, samples_.size());
+        decoder.flush();
+
+        assertEquals(4, samples_.size());
+        assertEquals(2, decoder.getPackets());
+        for (int i = 0; i < 4; i++) {
+            byte[] expected = new byte[EmgDecoder.CHANNELS];
+            System.arraycopy(CAPTURE, i * EmgDecoder.CHANNELS, expected, 0, EmgDecoder.CHANNELS);
+            assertArrayEquals(expected, samples_.get(i));
+        }
+        for (int i = 1; i < 4; i++) {
+            assertEquals(SAMPLE_NS, stamps_.get(i) - stamps_.get(i - 1));
+        }
+    }
+
+    @Test
+    public void rejectsPartialPackets() {
+        EmgDecoder decoder = decoder(4);
+        assertFalse(decoder.decode(CAPTURE, 0, EmgDecoder.PACKET_SIZE + 1, T0_NS));
+        assertEquals(1, decoder.getMalformed());
+        assertEquals(0, decoder.getPackets());
+    }
+
+    @Test
+    public void stampsFollowTheSampleTimeline() {
+        EmgDecoder decoder = decoder(20);
+        feed(decoder, 5000, -1, 0);
+        decoder.flush();
+
+        assertEquals(10000, stamps_.size());
+        assertEquals(0, decoder.getLostPackets());
+        // Once the offset estimate has seen a packet with little jitter
+        assertTimeline(1000, 0, 1000);
+    }
+
+    @Test
+    public void reanchorsAfterLostPackets() {
+        EmgDecoder decoder = decoder(20);
+        // Packets 2000 and 2001 never arrive
+        feed(decoder, 5000, 2000, 2);
+        decoder.flush();
+
+        assertEquals(2, decoder.getLostPackets());
+        assertEquals(1, decoder.getGaps());
+        assertEquals(2 * (5000 - 2), stamps_.size());
+        for (int i = 1; i < stamps_.size(); i++) {
+            assertTrue(stamps_.get(i) > stamps_.get(i - 1));
+        }
+        // Samples after the detection windows are back on the timeline, not two packets early
+        int first = 2 * (2000 + 2 * EmgDecoder.GAP_WINDOW);
+        assertTimeline(first, 2 * 2, 1000);
+    }
+
+    // Feeds packets 0..count-1 except lost ones starting at first_lost, delivered LATENCY_NS after
+    // their second sample plus up to 4 ms of jitter
+    private static void feed(EmgDecoder decoder, int count, int first_lost, int lost) {
+        byte[] packet = new byte[EmgDecoder.PACKET_SIZE];
+        long jitter = 1;
+        for (int k = 0; k < count; k++) {
+            jitter = (jitter * 1103515245 + 12345) & 0x7fffffff;
+            if (k >= first_lost && k < first_lost + lost) continue;
+            for (int i = 0; i < packet.length; i++) packet[i] = (byte) (k + i);
+            long arrival = T0_NS + (2 * k + 1) * SAMPLE_NS + LATENCY_NS + (jitter % 4000) * 1000;
+            decoder.decode(packet, 0, packet.length, arrival);
+        }
+    }
+
+    // Stamps from output index first on are within tolerance of the true sample times, the output
+    // lagging the device timeline by skipped samples
+    private void assertTimeline(int first, int skipped, long tolerance_us) {
+        for (int i = first; i < stamps_.size(); i++) {
+            long expected = T0_NS + (i + skipped) * SAMPLE_NS + LATENCY_NS;
+            long error_us = Math.abs(stamps_.get(i) - expected) / 1000;
+            assertTrue("sample " + i + " off by " + error_us + " us", error_us <= tolerance_us);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhoneImuMergerTest {
+    private static final long T0_NS = 1000000000L;
+    private static final long OFFSET_NS = 1500000000000000000L;
+    private static final int BATCH_MS = 100;
+    private static final long ACCEL_NS = 2500000;
+    private static final long GYRO_NS = 5000000;
+    private static final long ROTATION_NS = 10000000;
+    private static final int BATCHES = 20;
+
+    // Sensor clock driven by the test, ROS time a fixed offset ahead
+    private static class Replay implements PhoneImuMerger.Clock, PhoneImuMerger.Sink {
+        long now_ns_ = T0_NS;
+        final List<Long> rotations_ = new ArrayList<>();
+        final List<Long> imu_ = new ArrayList<>();
+        final List<double[]> imu_values_ = new ArrayList<>();
+        final PhoneImuMerger merger_ = new PhoneImuMerger(BATCH_MS, true, true, true, new SensorClockMapper(), this, this);
+
+        @Override
+        public long sensorNanos() {
+            return now_ns_;
+        }
+
+        @Override
+        public long rosNanos() {
+            return now_ns_ + OFFSET_NS;
+        }
+
+        @Override
+        public void onRotation(long event_ns, long stamp_ns, double x, double y, double z, double w) {
+            rotations_.add(stamp_ns);
+        }
+
+        @Override
+        public void onImu(long stamp_ns, int present, double[] accel, double[] gyro, double[] rotation) {
+            imu_.add(stamp_ns);
+            imu_values_.add(new double[] { accel[0], gyro[0], rotation[3] });
+        }
+
+        void event(int stream, long event_ns) {
+            double t = (event_ns - T0_NS) * 1e-9;
+            if (stream == SensorMerger.ACCEL) {
+                merger_.onAccel(event_ns, t, 0, 0);
+            } else if (stream == SensorMerger.GYRO) {
+                merger_.onGyro(event_ns, 2 * t, 0, 0);
+            } else {
+                // Rotation about z by t rad, the w component is cos(t / 2)
+                merger_.onRotationVector(event_ns, new float[] { 0, 0, (float) Math.sin(t / 2) });
+            }
+        }
+    }
+
+    private static final long[] PERIODS = { ACCEL_NS, GYRO_NS, ROTATION_NS };
+
+    @Test
+    public void fifoBurstsComeOutInOrder() {
+        Replay replay = new Replay();
+        long batch_ns = BATCH_MS * 1000000L;
+        for (int b = 0; b < BATCHES; b++) {
+            // Each sensor's FIFO is delivered in one burst, one sensor after the other, after the batch
+            long start = T0_NS + b * batch_ns;
+            replay.now_ns_ = start + batch_ns;
+            for (int s = SensorMerger.STREAMS - 1; s >= 0; s--) {
+                for (long t = start; t < start + batch_ns; t += PERIODS[s]) {
+                    replay.event(s, t);
+                }
+                replay.now_ns_ += 200000;
+            }
+        }
+
+        assertEquals(0, replay.merger_.getLate());
+        assertEquals(BATCHES * batch_ns / ROTATION_NS, replay.rotations_.size());
+        for (int i = 0; i < replay.rotations_.size(); i++) {
+            assertEquals(T0_NS + i * ROTATION_NS + OFFSET_NS, (long) replay.rotations_.get(i));
+        }
+
+        // Stamped on event time, not on delivery, and never backwards
+        for (int i = 1; i < replay.imu_.size(); i++) {
+            assertTrue(replay.imu_.get(i) > replay.imu_.get(i - 1));
+        }
+        // The first burst of the fastest sensor comes last, from then on it drives the output.
+        // Everything but the events still waiting for the other sensors' next bursts is out.
+        int first = replay.imu_.indexOf(T0_NS + batch_ns + OFFSET_NS);
+        assertTrue(first > 0);
+        assertTrue(replay.imu_.size() - first >= (BATCHES - 2) * batch_ns / ACCEL_NS);
+        for (int i = first; i < replay.imu_.size(); i++) {
+            assertEquals(T0_NS + batch_ns + (i - first) * ACCEL_NS + OFFSET_NS, (long) replay.imu_.get(i));
+        }
+
+        // The slower sensors are interpolated to the event times
+        for (int i = 0; i < replay.imu_.size(); i++) {
+            double t = (replay.imu_.get(i) - OFFSET_NS - T0_NS) * 1e-9;
+            double[] v = replay.imu_values_.get(i);
+            assertEquals(t, v[0], 1e-9);
+            assertEquals(2 * t, v[1], 1e-6);
+            assertEquals(Math.cos(t / 2), v[2], 1e-4);
+        }
+    }
+
+    @Test
+    public void burstsMatchLiveDelivery() {
+        Replay live = new Replay();
+        long end = T0_NS + BATCHES * BATCH_MS * 1000000L;
+        for (long t = T0_NS; t < end; t += ACCEL_NS) {
+            live.now_ns_ = t + 1000000;
+            for (int s = 0; s < SensorMerger.STREAMS; s++) {
+                if ((t - T0_NS) % PERIODS[s] == 0) live.event(s, t);
+            }
+        }
+
+        Replay burst = new Replay();
+        long batch_ns = BATCH_MS * 1000000L;
+        for (long start = T0_NS; start < end; start += batch_ns) {
+            burst.now_ns_ = start + batch_ns;
+            for (int s = 0; s < SensorMerger.STREAMS; s++) {
+                for (long t = start; t < start + batch_ns; t += PERIODS[s]) {
+                    burst.event(s, t);
+                }
+            }
+        }
+
+        assertEquals(live.rotations_, burst.rotations_);
+        // The burst replay holds back at most one batch waiting for the next bursts
+        assertTrue(live.imu_.size() - burst.imu_.size() <= batch_ns / ACCEL_NS);
+        for (int i = 0; i < burst.imu_.size(); i++) {
+            assertEquals(live.imu_.get(i), burst.imu_.get(i));
+            double[] l = live.imu_values_.get(i);
+            double[] b = burst.imu_values_.get(i);
+            for (int k = 0; k < l.length; k++) {
+                assertEquals(l[k], b[k], 1e-12);
+            }
+        }
+    }
+}
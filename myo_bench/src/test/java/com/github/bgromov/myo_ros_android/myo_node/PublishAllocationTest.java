@@ -0,0 +1,94 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import com.thalmic.myo.Myo;
+
+import org.junit.Test;
+import org.ros.node.topic.Publisher;
+
+import java.lang.management.ManagementFactory;
+
+import geometry_msgs.Vector3Stamped;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Steady-state allocation of the pooled publish path: Hub-side callbacks, the sample ring, the
+ * decimators and gates, message reuse and /tf batching, for one armband on one thread.
+ *
+ * The fake publishers are dynamic proxies, whose argument arrays are charged to the harness: the
+ * cost of a bare publish() is measured on the same proxies and subtracted.
+ */
+public class PublishAllocationTest {
+    private static final int WARMUP = 200000;
+    private static final int SAMPLES = 100000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void rosTimestamps() {
+        assertEquals(0, bytesPerSample(true));
+    }
+
+    @Test
+    public void deviceTimestamps() {
+        assertEquals(0, bytesPerSample(false));
+    }
+
+    // Average over SAMPLES, so occasional allocations (the once a second clock rebase) round to 0
+    private long bytesPerSample(boolean ros_timestamps) {
+        assertTrue(THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+
+        FakeNode fake = new FakeNode()
+                .param("/idsia/myo/pooled_messages", true)
+                .param("/idsia/myo/use_ros_timestamps", ros_timestamps);
+
+        TfBroadcaster tf = new TfBroadcaster();
+        tf.onStart(fake.node());
+
+        MyoNode node = new MyoNode(new Myo("00-11-22-33-44-55", "test"), 1, 0, tf, fake.timeProvider());
+        node.onStart(fake.node());
+
+        // Long enough for the clock model to be fitted and the path to be compiled
+        FakeMyoSource source = new FakeMyoSource();
+        for (int i = 0; i < WARMUP; i++) {
+            source.emit(node);
+            node.publishPending(Integer.MAX_VALUE);
+        }
+        assertTrue(node.isTimeSynced());
+
+        long published = fake.getPublished();
+        long before = allocatedBytes();
+        for (int i = 0; i < SAMPLES; i++) {
+            source.emit(node);
+            node.publishPending(Integer.MAX_VALUE);
+        }
+        long bytes = allocatedBytes() - before;
+        long publishes = fake.getPublished() - published;
+        assertTrue(publishes >= 3L * SAMPLES);
+
+        return Math.max(0, bytes - harnessBytes(fake, publishes)) / SAMPLES;
+    }
+
+    // Bytes the fake publishers themselves allocate for count publish() calls
+    @SuppressWarnings("unchecked")
+    private static long harnessBytes(FakeNode fake, long count) {
+        Publisher<Object> pub = (Publisher<Object>) fake.publisher(Vector3Stamped._TYPE);
+        Object msg = pub.newMessage();
+        for (int i = 0; i < WARMUP; i++) {
+            pub.publish(msg);
+        }
+
+        long before = allocatedBytes();
+        for (long i = 0; i < count; i++) {
+            pub.publish(msg);
+        }
+        return allocatedBytes() - before;
+    }
+}
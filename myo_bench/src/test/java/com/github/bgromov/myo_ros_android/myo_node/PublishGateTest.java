@@ -0,0 +1,135 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PublishGateTest {
+    private static final long MAX_AGE_NS = 100000000L;
+    private static final long PERIOD_NS = 20000000L;
+
+    private long now_ns_ = 0;
+    private boolean congested_ = false;
+    private final List<Long> out_ = new ArrayList<>();
+
+    private final PublishGate.Outgoing outgoing_ = new PublishGate.Outgoing() {
+        @Override
+        public boolean isCongested() {
+            return congested_;
+        }
+
+        @Override
+        public int depth() {
+            return -1;
+        }
+    };
+
+    private PublishGate gate(PublishGate.Policy policy, int depth) {
+        return new PublishGate(policy, depth, MAX_AGE_NS, () -> now_ns_, outgoing_, (stamp, a, b, c, d) -> out_.add(stamp));
+    }
+
+    // Samples 0..count-1 stamped every PERIOD_NS, each fresh, into congested connections
+    private void congested(PublishGate gate, int count) {
+        congested_ = true;
+        for (int i = 0; i < count; i++) {
+            now_ns_ = i * PERIOD_NS;
+            gate.add(i * PERIOD_NS, 0, 0, 0, 0);
+        }
+    }
+
+    // Samples 0..count-1 stamped every PERIOD_NS, the publish loop stalled until the last one is due
+    private void backlog(PublishGate gate, int count) {
+        now_ns_ = (count - 1) * PERIOD_NS;
+        for (int i = 0; i < count; i++) {
+            gate.add(i * PERIOD_NS, 0, 0, 0, 0);
+        }
+    }
+
+    private static List<Long> stamps(int... samples) {
+        Long[] stamps = new Long[samples.length];
+        for (int i = 0; i < samples.length; i++) stamps[i] = samples[i] * PERIOD_NS;
+        return Arrays.asList(stamps);
+    }
+
+    @Test
+    public void freshSamplesGoOutRightAway() {
+        PublishGate gate = gate(PublishGate.Policy.LATEST_ONLY, 1);
+        for (int i = 0; i < 10; i++) {
+            now_ns_ = i * PERIOD_NS + 5000000;
+            gate.add(i * PERIOD_NS, 0, 0, 0, 0);
+            assertEquals(i + 1, out_.size());
+        }
+        assertEquals(0, gate.getStale());
+        assertEquals(0, gate.getDropped());
+    }
+
+    @Test
+    public void publishAllPublishesStaleSamples() {
+        PublishGate gate = gate(PublishGate.Policy.PUBLISH_ALL, 1);
+        backlog(gate, 20);
+        assertEquals(20, out_.size());
+        assertEquals(14, gate.getStale());
+        assertEquals(0, gate.getDropped());
+        assertEquals(19 * PERIOD_NS, gate.getMaxSeenAgeNs());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestStaleSamples() {
+        PublishGate gate = gate(PublishGate.Policy.DROP_OLDEST, 3);
+        backlog(gate, 20);
+        // 0..13 are stale, 11..13 are kept and go out ahead of the first fresh sample
+        assertEquals(stamps(11, 12, 13, 14, 15, 16, 17, 18, 19), out_);
+        assertEquals(11, gate.getDropped());
+    }
+
+    @Test
+    public void latestOnlyKeepsOneStaleSample() {
+        PublishGate gate = gate(PublishGate.Policy.LATEST_ONLY, 8);
+        now_ns_ = 1000 * PERIOD_NS;
+        for (int i = 0; i < 5; i++) {
+            gate.add(i * PERIOD_NS, 0, 0, 0, 0);
+        }
+        assertEquals(0, out_.size());
+        gate.flush();
+        assertEquals(stamps(4), out_);
+        assertEquals(4, gate.getDropped());
+    }
+
+    @Test
+    public void publishAllCountsCongestedSamples() {
+        PublishGate gate = gate(PublishGate.Policy.PUBLISH_ALL, 1);
+        congested(gate, 10);
+        assertEquals(10, out_.size());
+        assertEquals(10, gate.getCongestedOut());
+        assertEquals(0, gate.getStale());
+        assertTrue(gate.isCongested());
+    }
+
+    @Test
+    public void congestionHoldsBackFreshSamples() {
+        PublishGate gate = gate(PublishGate.Policy.DROP_OLDEST, 3);
+        congested(gate, 10);
+        assertEquals(0, out_.size());
+        assertEquals(3, gate.getStaged());
+        assertEquals(7, gate.getDropped());
+
+        // Nothing goes out until the connections drain
+        gate.flush();
+        assertEquals(0, out_.size());
+        congested_ = false;
+        gate.flush();
+        assertEquals(stamps(7, 8, 9), out_);
+        assertEquals(0, gate.getStaged());
+        assertEquals(0, gate.getStale());
+    }
+
+    @Test
+    public void oldBlockPolicyNameMeansPublishAll() {
+        assertEquals(PublishGate.Policy.PUBLISH_ALL, PublishGate.Policy.fromString("block", PublishGate.Policy.LATEST_ONLY));
+    }
+}
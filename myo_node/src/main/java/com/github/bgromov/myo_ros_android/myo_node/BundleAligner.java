@@ -0,0 +1,260 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aligns the orientation, gyro and accel streams of several armbands onto a common time grid.
+ *
+ * Ticks are multiples of the period in ROS time. At each tick every armband's parts are
+ * interpolated between the two samples around the tick if those are at most two slops apart
+ * (normalized-linearly for the orientation), otherwise the nearest sample is used if it is within
+ * one slop of the tick, otherwise the part is missing. A tick is handed over as soon as every live
+ * armband has a sample at or after it, or max latency after the tick for armbands that lag
+ * behind. Armbands join and leave at any time. Single-threaded, nothing is allocated per sample.
+ */
+class BundleAligner {
+    public static final int ORIENTATION = 0;
+    public static final int GYRO = 1;
+    public static final int ACCEL = 2;
+    public static final int PARTS = 3;
+
+    // Per armband: orientation x, y, z, w, gyro x, y, z, accel x, y, z
+    public static final int VALUES = 10;
+    private static final int[] OFFSET = { 0, 4, 7 };
+    private static final int[] LENGTH = { 4, 3, 3 };
+
+    public interface Sink {
+        // ids[i] is the armband of bundle entry i, parts[i] a mask of (1 << part) for the parts it has
+        void onBundle(long tick_ns, int count, int[] ids, int[] parts, double[][] values);
+    }
+
+    private static final int HISTORY = 32;
+    private static final int MASK = HISTORY - 1;
+    // Armbands without any sample for this long don't hold ticks back
+    private static final long STALE_NS = 1000000000L;
+    // Ticks further behind are skipped instead of being worked off
+    private static final long MAX_BACKLOG_NS = 1000000000L;
+
+    // Opaque handle of an armband
+    static final class Track {
+        final int id;
+        final long[][] stamps = new long[PARTS][HISTORY];
+        final double[][] values = new double[PARTS][4 * HISTORY];
+        final long[] count = new long[PARTS];
+
+        Track(int id) {
+            this.id = id;
+        }
+
+        long newest(int part) {
+            long n = count[part];
+            return n > 0 ? stamps[part][(int) ((n - 1) & MASK)] : Long.MIN_VALUE;
+        }
+    }
+
+    private final long period_ns_;
+    private final long slop_ns_;
+    private final long max_latency_ns_;
+    private final Sink sink_;
+
+    private final List<Track> tracks_ = new ArrayList<>();
+    private long next_tick_ns_ = Long.MIN_VALUE;
+
+    private int[] ids_ = new int[8];
+    private int[] parts_ = new int[8];
+    private double[][] values_ = new double[8][VALUES];
+
+    // Read by the diagnostics thread
+    private volatile int track_count_ = 0;
+    private volatile long bundles_ = 0;
+    private volatile long partial_ = 0;
+    private volatile long skipped_ = 0;
+
+    public BundleAligner(long period_ns, long slop_ns, long max_latency_ns, Sink sink) {
+        period_ns_ = period_ns;
+        slop_ns_ = slop_ns;
+        max_latency_ns_ = max_latency_ns;
+        sink_ = sink;
+    }
+
+    public Track join(int id) {
+        Track track = new Track(id);
+        tracks_.add(track);
+        if (tracks_.size() > ids_.length) {
+            int n = 2 * ids_.length;
+            ids_ = new int[n];
+            parts_ = new int[n];
+            values_ = new double[n][VALUES];
+        }
+        track_count_ = tracks_.size();
+        return track;
+    }
+
+    public void leave(Track track) {
+        tracks_.remove(track);
+        track_count_ = tracks_.size();
+    }
+
+    public void add(Track track, int part, long stamp, double a, double b, double c, double d) {
+        long n = track.count[part];
+        if (stamp <= track.newest(part)) return; // Out of order or duplicate
+
+        int i = (int) (n & MASK);
+        track.stamps[part][i] = stamp;
+        double[] v = track.values[part];
+        v[4 * i] = a;
+        v[4 * i + 1] = b;
+        v[4 * i + 2] = c;
+        v[4 * i + 3] = d;
+        track.count[part] = n + 1;
+
+        if (next_tick_ns_ == Long.MIN_VALUE) {
+            next_tick_ns_ = ceil(stamp);
+        }
+    }
+
+    private long ceil(long t) {
+        return Math.floorDiv(t + period_ns_ - 1, period_ns_) * period_ns_;
+    }
+
+    // Hands over every tick that is ready at ROS time now_ns
+    public void advance(long now_ns) {
+        if (next_tick_ns_ == Long.MIN_VALUE) return;
+
+        if (now_ns - next_tick_ns_ > MAX_BACKLOG_NS) {
+            long tick = ceil(now_ns - max_latency_ns_);
+            skipped_ += (tick - next_tick_ns_) / period_ns_;
+            next_tick_ns_ = tick;
+        }
+
+        while (isReady(next_tick_ns_, now_ns)) {
+            emit(next_tick_ns_);
+            next_tick_ns_ += period_ns_;
+        }
+    }
+
+    private boolean isReady(long tick, long now_ns) {
+        if (now_ns >= tick + max_latency_ns_) return true;
+
+        boolean any = false;
+        for (int k = 0; k < tracks_.size(); k++) {
+            Track track = tracks_.get(k);
+            for (int part = 0; part < PARTS; part++) {
+                if (track.count[part] == 0) continue;
+                long newest = track.newest(part);
+                if (newest < tick - STALE_NS) continue;
+                if (newest < tick) return false;
+                any = true;
+            }
+        }
+        return any;
+    }
+
+    // Nanoseconds until the pending tick is handed over at the latest, -1 if there is none
+    public long timeUntilDeadline(long now_ns) {
+        if (next_tick_ns_ == Long.MIN_VALUE) return -1;
+        return Math.max(0, next_tick_ns_ + max_latency_ns_ - now_ns);
+    }
+
+    private void emit(long tick) {
+        int count = 0;
+        boolean partial = false;
+        for (int k = 0; k < tracks_.size(); k++) {
+            Track track = tracks_.get(k);
+            double[] out = values_[count];
+            int parts = 0;
+            for (int part = 0; part < PARTS; part++) {
+                if (sample(track, part, tick, out)) {
+                    parts |= 1 << part;
+                } else {
+                    for (int j = 0; j < LENGTH[part]; j++) out[OFFSET[part] + j] = 0;
+                }
+            }
+            if (parts == 0) {
+                partial = true;
+                continue;
+            }
+            if (parts != (1 << PARTS) - 1) partial = true;
+            ids_[count] = track.id;
+            parts_[count] = parts;
+            count++;
+        }
+
+        if (count == 0) return;
+        bundles_++;
+        if (partial) partial_++;
+        sink_.onBundle(tick, count, ids_, parts_, values_);
+    }
+
+    private boolean sample(Track track, int part, long t, double[] out) {
+        long n = track.count[part];
+        if (n == 0) return false;
+        long[] stamps = track.stamps[part];
+        double[] v = track.values[part];
+        long oldest = Math.max(0, n - HISTORY);
+
+        // Newest sample at or before t
+        long k = n - 1;
+        while (k >= oldest && stamps[(int) (k & MASK)] > t) k--;
+        boolean before = k >= oldest;
+        boolean after = k + 1 < n;
+        int i0 = (int) (k & MASK);
+        int i1 = (int) ((k + 1) & MASK);
+        int offset = OFFSET[part];
+
+        if (before && after && stamps[i1] - stamps[i0] <= 2 * slop_ns_) {
+            double f = (double) (t - stamps[i0]) / (stamps[i1] - stamps[i0]);
+            if (part == ORIENTATION) {
+                double dot = 0;
+                for (int j = 0; j < 4; j++) dot += v[4 * i0 + j] * v[4 * i1 + j];
+                double sign = dot < 0 ? -1 : 1;
+                double norm = 0;
+                for (int j = 0; j < 4; j++) {
+                    double q = (1 - f) * v[4 * i0 + j] + f * sign * v[4 * i1 + j];
+                    out[offset + j] = q;
+                    norm += q * q;
+                }
+                norm = Math.sqrt(norm);
+                for (int j = 0; j < 4; j++) out[offset + j] /= norm;
+            } else {
+                for (int j = 0; j < LENGTH[part]; j++) {
+                    out[offset + j] = (1 - f) * v[4 * i0 + j] + f * v[4 * i1 + j];
+                }
+            }
+            return true;
+        }
+
+        // Nearest sample within the slop
+        int nearest = -1;
+        long distance = slop_ns_;
+        if (before && t - stamps[i0] <= distance) {
+            nearest = i0;
+            distance = t - stamps[i0];
+        }
+        if (after && stamps[i1] - t <= distance) {
+            nearest = i1;
+        }
+        if (nearest < 0) return false;
+        for (int j = 0; j < LENGTH[part]; j++) out[offset + j] = v[4 * nearest + j];
+        return true;
+    }
+
+    public int getTracks() {
+        return track_count_;
+    }
+
+    public long getBundles() {
+        return bundles_;
+    }
+
+    // Bundles in which an armband, or a part of one, was missing
+    public long getPartial() {
+        return partial_;
+    }
+
+    // Ticks skipped after falling too far behind
+    public long getSkipped() {
+        return skipped_;
+    }
+}
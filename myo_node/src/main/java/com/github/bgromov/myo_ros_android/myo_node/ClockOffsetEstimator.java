@@ -0,0 +1,67 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Streaming estimate of the offset between a device clock and ROS time.
+ *
+ * Every sample gives arrival - device_time = offset + transport delay. The delay is never
+ * negative, so the smallest value in a sliding window is the sample that was least delayed and the
+ * best offset estimate available. The window minimum is maintained with a monotonic deque over
+ * primitive arrays, which makes each update O(1) amortized and allocation-free.
+ */
+class ClockOffsetEstimator {
+    public static final int DEFAULT_WINDOW = 256;
+    public static final int DEFAULT_MIN_SAMPLES = 5;
+
+    private final int window_;
+    private final int min_samples_;
+
+    // Deque of (sequence number, offset), offsets increasing from head to tail
+    private final long[] seq_;
+    private final long[] offset_;
+    private int head_ = 0;
+    private int size_ = 0;
+
+    private long count_ = 0;
+
+    public ClockOffsetEstimator(int window, int min_samples) {
+        window_ = window;
+        min_samples_ = min_samples;
+        seq_ = new long[window];
+        offset_ = new long[window];
+    }
+
+    public ClockOffsetEstimator() {
+        this(DEFAULT_WINDOW, DEFAULT_MIN_SAMPLES);
+    }
+
+    // Both times in the same unit
+    public void add(long device_time, long arrival_time) {
+        long offset = arrival_time - device_time;
+
+        // Drop the minimum once it slides out of the window
+        if (size_ > 0 && seq_[head_] <= count_ - window_) {
+            head_ = (head_ + 1) % window_;
+            size_--;
+        }
+        // Drop everything that can no longer become the minimum
+        while (size_ > 0 && offset_[(head_ + size_ - 1) % window_] >= offset) {
+            size_--;
+        }
+
+        int tail = (head_ + size_) % window_;
+        seq_[tail] = count_;
+        offset_[tail] = offset;
+        size_++;
+
+        count_++;
+    }
+
+    public boolean isReady() {
+        return count_ >= min_samples_;
+    }
+
+    // Minimum offset over the window, arrival_time - device_time
+    public long getOffset() {
+        return size_ > 0 ? offset_[head_] : 0;
+    }
+}
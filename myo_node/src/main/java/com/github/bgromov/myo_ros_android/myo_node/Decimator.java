@@ -0,0 +1,132 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Rate limiter for one sample stream.
+ *
+ * Output times follow a fixed grid of the configured period, so the output rate is exact on
+ * average even with jittery stamps. In LATEST mode the newest sample of each period is passed on,
+ * in AVERAGE mode the mean of all samples of the period, stamped with their mean stamp. Quaternion
+ * streams are averaged component-wise after aligning signs (q and -q are the same rotation) and
+ * the result is normalized, which is accurate for the small rotations within one period.
+ *
+ * A period of 0 passes every sample through. Single-threaded, nothing is allocated per sample.
+ */
+class Decimator {
+    public enum Mode {
+        LATEST,
+        AVERAGE;
+
+        public static Mode fromString(String s, Mode def) {
+            for (Mode m : values()) {
+                if (m.name().equalsIgnoreCase(s)) return m;
+            }
+            return def;
+        }
+    }
+
+    public interface Sink {
+        void onSample(long stamp, double a, double b, double c, double d);
+    }
+
+    private final long period_ns_;
+    private final Mode mode_;
+    private final boolean quaternion_;
+    private final Sink sink_;
+
+    private long next_ns_;
+    private int count_ = 0;
+    private long stamp_sum_;
+    private long stamp_;
+    private double a_, b_, c_, d_;
+
+    // Read by the diagnostics thread
+    private volatile long in_ = 0;
+    private volatile long out_ = 0;
+
+    public Decimator(long period_ns, Mode mode, boolean quaternion, Sink sink) {
+        period_ns_ = period_ns;
+        mode_ = mode;
+        quaternion_ = quaternion;
+        sink_ = sink;
+    }
+
+    // Configured from rate_hz, 0 or less for no decimation
+    public static Decimator forRate(double rate_hz, Mode mode, boolean quaternion, Sink sink) {
+        long period_ns = rate_hz > 0 ? (long) (1e9 / rate_hz) : 0;
+        return new Decimator(period_ns, mode, quaternion, sink);
+    }
+
+    public void add(long stamp, double a, double b, double c, double d) {
+        in_++;
+        if (period_ns_ <= 0) {
+            out_++;
+            sink_.onSample(stamp, a, b, c, d);
+            return;
+        }
+
+        if (in_ == 1) {
+            next_ns_ = stamp + period_ns_;
+        }
+
+        if (mode_ == Mode.LATEST || count_ == 0) {
+            stamp_sum_ = 0;
+            a_ = b_ = c_ = d_ = 0;
+            if (mode_ == Mode.LATEST) count_ = 0;
+        }
+
+        if (quaternion_ && count_ > 0 && a_ * a + b_ * b + c_ * c + d_ * d < 0) {
+            a = -a;
+            b = -b;
+            c = -c;
+            d = -d;
+        }
+        a_ += a;
+        b_ += b;
+        c_ += c;
+        d_ += d;
+        stamp_sum_ += stamp - next_ns_;
+        stamp_ = stamp;
+        count_++;
+
+        // A quarter period of tolerance keeps stamp jitter from shifting samples between periods
+        if (stamp >= next_ns_ - period_ns_ / 4) {
+            emit();
+            next_ns_ += period_ns_;
+            if (next_ns_ <= stamp) {
+                // Resynchronize after a gap
+                next_ns_ = stamp + period_ns_;
+            }
+        }
+    }
+
+    private void emit() {
+        double a = a_ / count_, b = b_ / count_, c = c_ / count_, d = d_ / count_;
+        long stamp = mode_ == Mode.LATEST ? stamp_ : next_ns_ + stamp_sum_ / count_;
+
+        if (quaternion_) {
+            double norm = Math.sqrt(a * a + b * b + c * c + d * d);
+            if (norm > 0) {
+                a /= norm;
+                b /= norm;
+                c /= norm;
+                d /= norm;
+            }
+        }
+
+        count_ = 0;
+        out_++;
+        sink_.onSample(stamp, a, b, c, d);
+    }
+
+    public long getPeriodNs() {
+        return period_ns_;
+    }
+
+    public long getIn() {
+        return in_;
+    }
+
+    public long getOut() {
+        return out_;
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.topic.Publisher;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import diagnostic_msgs.DiagnosticArray;
+import diagnostic_msgs.DiagnosticStatus;
+import diagnostic_msgs.KeyValue;
+
+/**
+ * Periodically publishes the health of all devices on /diagnostics, one DiagnosticStatus each.
+ *
+ * Devices register as sources and keep their own counters on the hot path; they are only read
+ * here, on the diagnostics thread, so reporting costs nothing between two periods.
+ */
+public class DiagnosticsPublisher extends AbstractNodeMain {
+    private static final String TAG = "DiagnosticsPublisher";
+
+    public interface Source {
+        // Called on the diagnostics thread once per period
+        void report(Report report);
+    }
+
+    // Fills one status. Levels only escalate, messages of the same level are joined.
+    public static final class Report {
+        private final MessageFactory factory_;
+        private final long[] scratch_ = new long[LatencyHistogram.BUCKETS];
+        private DiagnosticStatus status_;
+        private double period_s_;
+
+        private Report(MessageFactory factory) {
+            factory_ = factory;
+        }
+
+        private void reset(DiagnosticStatus status, double period_s) {
+            status_ = status;
+            period_s_ = period_s;
+            status_.setLevel(DiagnosticStatus.OK);
+            status_.setMessage("OK");
+        }
+
+        // Seconds since the previous report
+        public double getPeriod() {
+            return period_s_;
+        }
+
+        public void setName(String name, String hardware_id) {
+            status_.setName(name);
+            status_.setHardwareId(hardware_id);
+        }
+
+        public void level(byte level, String message) {
+            if (level > status_.getLevel()) {
+                status_.setLevel(level);
+                status_.setMessage(message);
+            } else if (level == status_.getLevel() && level != DiagnosticStatus.OK) {
+                status_.setMessage(status_.getMessage() + "; " + message);
+            }
+        }
+
+        public void add(String key, Object value) {
+            KeyValue kv = factory_.newFromType(KeyValue._TYPE);
+            kv.setKey(key);
+            kv.setValue(String.valueOf(value));
+            status_.getValues().add(kv);
+        }
+
+        // Events per second given the current and the previously reported counter
+        public double rate(long count, long previous) {
+            return period_s_ > 0 ? (count - previous) / period_s_ : 0;
+        }
+
+        // Adds the latency percentiles of the interval since the previous report, previous holds
+        // the cumulative counts of that report and is updated
+        public long addLatency(String prefix, LatencyHistogram histogram, long[] previous) {
+            histogram.snapshot(scratch_);
+            for (int i = 0; i < scratch_.length; i++) {
+                long c = scratch_[i];
+                scratch_[i] = c - previous[i];
+                previous[i] = c;
+            }
+
+            add(prefix + "_p50_us", LatencyHistogram.percentile(scratch_, 0.5));
+            add(prefix + "_p90_us", LatencyHistogram.percentile(scratch_, 0.9));
+            add(prefix + "_p99_us", LatencyHistogram.percentile(scratch_, 0.99));
+            long max = LatencyHistogram.percentile(scratch_, 1.0);
+            add(prefix + "_max_us", max);
+            return max;
+        }
+    }
+
+    private final List<Source> sources_ = new CopyOnWriteArrayList<>();
+
+    private ConnectedNode node_;
+    private Publisher<DiagnosticArray> pub_;
+    private Report report_;
+    private long period_ms_ = 1000;
+    private long last_report_ns_;
+
+    public void register(Source source) {
+        sources_.add(source);
+    }
+
+    public void unregister(Source source) {
+        sources_.remove(source);
+    }
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("myo_ros_android/diagnostics");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        node_ = connectedNode;
+        period_ms_ = Math.max(100, node_.getParameterTree().getInteger("/idsia/diagnostics/period_ms", (int) period_ms_));
+
+        pub_ = node_.newPublisher("/diagnostics", DiagnosticArray._TYPE);
+        report_ = new Report(node_.getTopicMessageFactory());
+        last_report_ns_ = System.nanoTime();
+
+        Log.i(TAG, "Publishing /diagnostics every " + period_ms_ + " ms");
+
+        node_.executeCancellableLoop(new CancellableLoop() {
+            @Override
+            protected void loop() throws InterruptedException {
+                Thread.sleep(period_ms_);
+                publish();
+            }
+        });
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        sources_.clear();
+    }
+
+    private void publish() {
+        long now_ns = System.nanoTime();
+        double period_s = (now_ns - last_report_ns_) * 1e-9;
+        last_report_ns_ = now_ns;
+
+        if (sources_.isEmpty()) return;
+
+        DiagnosticArray msg = pub_.newMessage();
+        msg.getHeader().setStamp(node_.getCurrentTime());
+
+        for (Source source : sources_) {
+            DiagnosticStatus status = node_.getTopicMessageFactory().newFromType(DiagnosticStatus._TYPE);
+            report_.reset(status, period_s);
+            try {
+                source.report(report_);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Diagnostics source failed", e);
+                report_.level(DiagnosticStatus.ERROR, "Failed to report: " + e);
+            }
+            msg.getStatus().add(status);
+        }
+
+        pub_.publish(msg);
+    }
+}
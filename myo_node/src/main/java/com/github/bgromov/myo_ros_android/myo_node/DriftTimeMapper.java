@@ -0,0 +1,176 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Maps a drifting device clock to ROS time with a continuously updated linear model.
+ *
+ * Until enough history is available the mapping is the constant minimum-delay offset of
+ * {@link ClockOffsetEstimator}. Afterwards the slope (1 + skew) comes from a least-squares fit
+ * of arrival time against device time over a sliding window, and the line is shifted down onto
+ * the least-delayed points so that it stays consistent with the initial offset.
+ *
+ * Samples must be added from a single thread. The model is published with a sequence lock, so
+ * {@link #map} and the getters can be called from any thread without locking.
+ */
+class DriftTimeMapper {
+    public static final int DEFAULT_WINDOW = 1024;
+    // Every point in the window is the least-delayed sample of a group of this many
+    public static final int DEFAULT_STRIDE = 5;
+    public static final long DEFAULT_MIN_SPAN_US = 30000000L;
+
+    private final ClockOffsetEstimator initial_ = new ClockOffsetEstimator();
+
+    private final int stride_;
+    private final long min_span_us_;
+
+    // Window of (device, arrival) points, writer thread only
+    private final long[] device_;
+    private final long[] arrival_;
+    private int head_ = 0;
+    private int size_ = 0;
+
+    private int group_count_ = 0;
+    private long group_device_;
+    private long group_arrival_;
+
+    // Model: ros = ref_ros_ + slope_ * (device - ref_device_), guarded by version_
+    private volatile int version_ = 0;
+    private volatile long ref_device_ = 0;
+    private volatile long ref_ros_ = 0;
+    private volatile double slope_ = 1.0;
+    private volatile double residual_ = 0;
+    private volatile boolean fitted_ = false;
+
+    public DriftTimeMapper(int window, int stride, long min_span_us) {
+        device_ = new long[window];
+        arrival_ = new long[window];
+        stride_ = stride;
+        min_span_us_ = min_span_us;
+    }
+
+    public DriftTimeMapper() {
+        this(DEFAULT_WINDOW, DEFAULT_STRIDE, DEFAULT_MIN_SPAN_US);
+    }
+
+    // Both times in microseconds
+    public void add(long device_us, long arrival_us) {
+        initial_.add(device_us, arrival_us);
+
+        if (group_count_ == 0 || arrival_us - device_us < group_arrival_ - group_device_) {
+            group_device_ = device_us;
+            group_arrival_ = arrival_us;
+        }
+
+        if (++group_count_ >= stride_) {
+            group_count_ = 0;
+            push(group_device_, group_arrival_);
+
+            if (size_ > 1 && device_[last()] - device_[head_] >= min_span_us_) {
+                fit();
+                return;
+            }
+        }
+
+        if (!fitted_) {
+            publish(0, initial_.getOffset(), 1.0, 0, false);
+        }
+    }
+
+    private int last() {
+        return (head_ + size_ - 1) % device_.length;
+    }
+
+    private void push(long device_us, long arrival_us) {
+        int i;
+        if (size_ < device_.length) {
+            i = (head_ + size_) % device_.length;
+            size_++;
+        } else {
+            i = head_;
+            head_ = (head_ + 1) % device_.length;
+        }
+        device_[i] = device_us;
+        arrival_[i] = arrival_us;
+    }
+
+    private void fit() {
+        long x0 = device_[head_];
+        long y0 = arrival_[head_];
+        int n = size_;
+
+        double mx = 0, my = 0;
+        for (int k = 0, i = head_; k < n; k++, i = (i + 1) % device_.length) {
+            mx += device_[i] - x0;
+            my += arrival_[i] - y0;
+        }
+        mx /= n;
+        my /= n;
+
+        double sxx = 0, sxy = 0;
+        for (int k = 0, i = head_; k < n; k++, i = (i + 1) % device_.length) {
+            double dx = device_[i] - x0 - mx;
+            double dy = arrival_[i] - y0 - my;
+            sxx += dx * dx;
+            sxy += dx * dy;
+        }
+        if (sxx <= 0) return;
+        double slope = sxy / sxx;
+
+        // Lower envelope of the residuals, and their spread around the fitted line
+        double mean = my - slope * mx;
+        double min = Double.MAX_VALUE, ss = 0;
+        for (int k = 0, i = head_; k < n; k++, i = (i + 1) % device_.length) {
+            double r = arrival_[i] - y0 - slope * (device_[i] - x0);
+            if (r < min) min = r;
+            ss += (r - mean) * (r - mean);
+        }
+
+        publish(x0, y0 + Math.round(min), slope, Math.sqrt(ss / n), true);
+    }
+
+    private void publish(long ref_device, long ref_ros, double slope, double residual, boolean fitted) {
+        version_++;
+        ref_device_ = ref_device;
+        ref_ros_ = ref_ros;
+        slope_ = slope;
+        residual_ = residual;
+        fitted_ = fitted;
+        version_++;
+    }
+
+    public boolean isReady() {
+        return initial_.isReady();
+    }
+
+    // True once the skew is estimated, before that the mapping is a constant offset
+    public boolean isFitted() {
+        return fitted_;
+    }
+
+    // Device time [us] to ROS time [us]
+    public long map(long device_us) {
+        while (true) {
+            int v = version_;
+            long ref_device = ref_device_;
+            long ref_ros = ref_ros_;
+            double slope = slope_;
+            if ((v & 1) == 0 && v == version_) {
+                return ref_ros + Math.round(slope * (device_us - ref_device));
+            }
+        }
+    }
+
+    // ROS time minus device time at the given device time [us]
+    public long getOffset(long device_us) {
+        return map(device_us) - device_us;
+    }
+
+    // Clock skew of ROS time relative to the device clock, in parts per million
+    public double getSkewPpm() {
+        return (slope_ - 1.0) * 1e6;
+    }
+
+    // RMS deviation of the arrival times from the fitted line [us]
+    public double getResidualUs() {
+        return residual_;
+    }
+}
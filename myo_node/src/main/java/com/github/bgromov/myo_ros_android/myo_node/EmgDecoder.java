@@ -0,0 +1,139 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Decodes raw Myo EMG notifications into timestamped samples.
+ *
+ * Each notification of the four EMG characteristics carries two consecutive samples of eight
+ * signed 8-bit channels. Samples are produced at a nominal 200 Hz, so they are timestamped by
+ * their running index on the device timeline (index * 5 ms), mapped to ROS time with a
+ * {@link DriftTimeMapper} fed with the packet arrival times. That removes the BLE delivery
+ * jitter from the stamps.
+ *
+ * The payloads carry no sequence number, so lost packets are detected from the arrival times:
+ * delivery delays vary, but the least-delayed of every {@link #GAP_WINDOW} notifications
+ * arrives close to the mapped timeline. When even that one is most of a packet period late,
+ * packets were lost, and the running index skips ahead by the missing samples. Samples that
+ * arrive before the gap is detected, at most two windows, stay on the old timeline.
+ *
+ * Samples are collected into primitive buffers and handed to the sink in batches. The decoder is
+ * not thread-safe; MyoNode feeds it from its publish loop, with the notifications the BLE callback
+ * thread queued and stamped, or it is fed from a recorded byte stream.
+ */
+class EmgDecoder {
+    public static final int CHANNELS = 8;
+    public static final int SAMPLES_PER_PACKET = 2;
+    public static final int PACKET_SIZE = CHANNELS * SAMPLES_PER_PACKET;
+    public static final long SAMPLE_PERIOD_US = 5000;
+    public static final long PACKET_PERIOD_US = SAMPLES_PER_PACKET * SAMPLE_PERIOD_US;
+    public static final int GAP_WINDOW = 8;
+
+    public interface Sink {
+        // stamps [ns] and samples (CHANNELS per sample) are only valid during the call
+        void onEmgBatch(long[] stamps, byte[] samples, int count);
+    }
+
+    private final Sink sink_;
+    private final long[] stamps_;
+    private final byte[] samples_;
+    private int count_ = 0;
+
+    private final DriftTimeMapper time_mapper_ = new DriftTimeMapper();
+    private long sample_index_ = 0;
+
+    // Smallest lateness [us] against the mapped timeline in the current window of notifications
+    private long window_min_late_us_ = Long.MAX_VALUE;
+    private int window_count_ = 0;
+
+    // Read by the diagnostics thread
+    private volatile long packets_ = 0;
+    private volatile long malformed_ = 0;
+    private volatile long lost_packets_ = 0;
+    private volatile long gaps_ = 0;
+
+    public EmgDecoder(int batch_size, Sink sink) {
+        sink_ = sink;
+        stamps_ = new long[batch_size];
+        samples_ = new byte[batch_size * CHANNELS];
+    }
+
+    // Decodes one or more back-to-back packets received at arrival_ns (ROS time).
+    // Returns false if the data is not a whole number of packets.
+    public boolean decode(byte[] data, int offset, int length, long arrival_ns) {
+        if (length <= 0 || length % PACKET_SIZE != 0) {
+            malformed_++;
+            return false;
+        }
+
+        int samples = length / CHANNELS;
+        packets_ += length / PACKET_SIZE;
+
+        // Only the newest sample is known to have been taken before arrival_ns
+        long arrival_us = arrival_ns / 1000;
+        detectGap(arrival_us, samples);
+        time_mapper_.add((sample_index_ + samples - 1) * SAMPLE_PERIOD_US, arrival_us);
+
+        for (int s = 0; s < samples; s++) {
+            stamps_[count_] = time_mapper_.map(sample_index_ * SAMPLE_PERIOD_US) * 1000;
+            System.arraycopy(data, offset + s * CHANNELS, samples_, count_ * CHANNELS, CHANNELS);
+            sample_index_++;
+
+            if (++count_ == stamps_.length) {
+                flush();
+            }
+        }
+        return true;
+    }
+
+    // Skips the running index over lost packets, before the samples arriving at arrival_us are added
+    private void detectGap(long arrival_us, int samples) {
+        if (!time_mapper_.isReady()) return;
+
+        long last_index = sample_index_ + samples - 1;
+        long late_us = arrival_us - time_mapper_.map(last_index * SAMPLE_PERIOD_US);
+        window_min_late_us_ = Math.min(window_min_late_us_, late_us);
+        if (++window_count_ < GAP_WINDOW) return;
+
+        // A quarter period of margin for the delivery jitter of the least-delayed packet
+        long lost = (window_min_late_us_ + PACKET_PERIOD_US / 4) / PACKET_PERIOD_US;
+        if (lost > 0) {
+            sample_index_ += lost * SAMPLES_PER_PACKET;
+            lost_packets_ += lost;
+            gaps_++;
+        }
+        window_min_late_us_ = Long.MAX_VALUE;
+        window_count_ = 0;
+    }
+
+    // A notification that was rejected before it got here
+    public void countMalformed() {
+        malformed_++;
+    }
+
+    // Hands over the samples collected so far
+    public void flush() {
+        if (count_ == 0) return;
+        sink_.onEmgBatch(stamps_, samples_, count_);
+        count_ = 0;
+    }
+
+    public long getPackets() {
+        return packets_;
+    }
+
+    public long getMalformed() {
+        return malformed_;
+    }
+
+    // Packets skipped over after gaps in the arrival times
+    public long getLostPackets() {
+        return lost_packets_;
+    }
+
+    public long getGaps() {
+        return gaps_;
+    }
+
+    public DriftTimeMapper getTimeMapper() {
+        return time_mapper_;
+    }
+}
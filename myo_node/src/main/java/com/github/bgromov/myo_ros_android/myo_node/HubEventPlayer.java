@@ -0,0 +1,96 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link MyoEventLog} on its own thread, paced by the recorded arrival times.
+ *
+ * A speed of 1 reproduces the original timing including the BLE delivery jitter, N plays N times
+ * faster and 0 (or less) as fast as the target can take it. The end callback runs on the player
+ * thread once the replay has ended or was stopped, after the last event.
+ */
+class HubEventPlayer implements Runnable, MyoEventLog.Visitor {
+    private static final String TAG = "HubEventPlayer";
+
+    private final File file_;
+    private final MyoEventLog.Visitor target_;
+    private final double speed_;
+    private final Runnable on_end_;
+    private volatile boolean stopped_ = false;
+    private Thread thread_;
+
+    private long first_arrival_ns_ = -1;
+    private long start_ns_;
+    private long events_ = 0;
+
+    public HubEventPlayer(File file, MyoEventLog.Visitor target, double speed, Runnable on_end) {
+        file_ = file;
+        target_ = target;
+        speed_ = speed;
+        on_end_ = on_end;
+    }
+
+    public synchronized void start() {
+        if (thread_ != null) return;
+        thread_ = new Thread(this, TAG);
+        thread_.start();
+    }
+
+    public synchronized void stop() {
+        stopped_ = true;
+        if (thread_ != null) thread_.interrupt();
+    }
+
+    public long getEvents() {
+        return events_;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try {
+            MyoEventLog.Reader reader = new MyoEventLog.Reader(file_);
+            try {
+                while (!stopped_ && reader.next(this)) {
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to replay " + file_, e);
+        }
+        Log.i(TAG, "Replayed " + events_ + " events from " + file_ + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        if (on_end_ != null) {
+            on_end_.run();
+        }
+    }
+
+    @Override
+    public void onDevice(int device, String mac, String name) {
+        target_.onDevice(device, mac, name);
+    }
+
+    @Override
+    public void onEvent(int type, int device, long timestamp, long arrival_ns, float a, float b, float c, float d) {
+        if (speed_ > 0) {
+            if (first_arrival_ns_ < 0) {
+                first_arrival_ns_ = arrival_ns;
+                start_ns_ = System.nanoTime();
+            }
+            long due = start_ns_ + (long) ((arrival_ns - first_arrival_ns_) / speed_);
+            long wait;
+            while (!stopped_ && (wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (stopped_) return;
+        }
+
+        target_.onEvent(type, device, timestamp, arrival_ns, a, b, c, d);
+        events_++;
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import com.thalmic.myo.AbstractDeviceListener;
+import com.thalmic.myo.Arm;
+import com.thalmic.myo.Myo;
+import com.thalmic.myo.Pose;
+import com.thalmic.myo.Quaternion;
+import com.thalmic.myo.Vector3;
+import com.thalmic.myo.XDirection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every Hub callback into a {@link MyoEventLog}. Added to the Hub next to the main
+ * listener, so it sees the same events on the same thread.
+ *
+ * The Hub thread only queues events into a {@link SampleRing}, it never touches the file: a
+ * writer thread of its own drains the ring every WRITE_PERIOD_MS and does the I/O, so slow
+ * storage cannot stall the Myo callbacks. Events that do not fit into the ring are dropped and
+ * counted.
+ */
+class HubEventRecorder extends AbstractDeviceListener implements Runnable, SampleRing.Consumer {
+    private static final String TAG = "HubEventRecorder";
+    private static final int RING_CAPACITY = 8192;
+    private static final long WRITE_PERIOD_MS = 20;
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    private static final class DeviceRecord {
+        final int device;
+        final String mac;
+        final String name;
+
+        DeviceRecord(int device, String mac, String name) {
+            this.device = device;
+            this.mac = mac;
+            this.name = name;
+        }
+    }
+
+    private final File file_;
+    // Writer thread only
+    private final MyoEventLog.Writer writer_;
+    private final Thread thread_;
+
+    // Events with the device in the upper bits of the kind, and new devices, queued before their events
+    private final SampleRing ring_ = new SampleRing(RING_CAPACITY);
+    private final ConcurrentLinkedQueue<DeviceRecord> devices_queued_ = new ConcurrentLinkedQueue<>();
+    // Hub thread only
+    private final Map<Myo, Integer> devices_ = new HashMap<>();
+
+    private volatile boolean closed_ = false;
+    private volatile boolean flush_requested_ = false;
+    private volatile boolean failed_ = false;
+    // First write error of a drain, writer thread only
+    private IOException error_;
+
+    public HubEventRecorder(File file) throws IOException {
+        file_ = file;
+        writer_ = new MyoEventLog.Writer(file);
+        thread_ = new Thread(this, TAG);
+        thread_.start();
+        Log.i(TAG, "Recording Hub events to " + file);
+    }
+
+    // Writes out what is queued and closes the file, waiting a bounded time for the writer
+    public void close() {
+        if (closed_) return;
+        closed_ = true;
+        LockSupport.unpark(thread_);
+        try {
+            thread_.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed_ && !failed_) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(WRITE_PERIOD_MS));
+                write();
+            }
+            write();
+        } finally {
+            try {
+                writer_.close();
+                Log.i(TAG, "Recorded " + writer_.getRecords() + " records to " + file_
+                        + ", dropped " + ring_.getDropped());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close " + file_, e);
+            }
+        }
+    }
+
+    // Writer thread: devices first, they were queued before any of their events
+    private void write() {
+        if (failed_) return;
+        boolean flush = flush_requested_;
+        flush_requested_ = false;
+        try {
+            DeviceRecord d;
+            while ((d = devices_queued_.poll()) != null) {
+                writer_.device(d.device, d.mac, d.name);
+            }
+            while (error_ == null && ring_.drain(this, RING_CAPACITY) > 0) {
+            }
+            if (error_ != null) throw error_;
+            if (flush) writer_.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to record to " + file_ + ", stopping", e);
+            failed_ = true;
+        }
+    }
+
+    @Override
+    public void onSample(int kind, long timestamp, long arrival_ns, double a, double b, double c, double d) {
+        if (error_ != null) return;
+        try {
+            writer_.event(kind & 0xff, kind >>> 8, timestamp, arrival_ns, (float) a, (float) b, (float) c, (float) d);
+        } catch (IOException e) {
+            error_ = e;
+        }
+    }
+
+    // Hub thread, returns -1 once there are too many devices
+    private int device(Myo myo) {
+        Integer device = devices_.get(myo);
+        if (device == null) {
+            if (devices_.size() == MyoEventLog.MAX_DEVICES) return -1;
+            device = devices_.size();
+            devices_.put(myo, device);
+            devices_queued_.add(new DeviceRecord(device, myo.getMacAddress(), myo.getName()));
+        }
+        return device;
+    }
+
+    private void record(int type, Myo myo, long timestamp, float a, float b, float c, float d) {
+        if (closed_ || failed_) return;
+        int device = device(myo);
+        if (device < 0) return;
+        ring_.offer(type | device << 8, timestamp, System.nanoTime(), a, b, c, d);
+    }
+
+    // Written out with the next batch, so a crash loses little more than the data since the last attach change
+    private void flush() {
+        flush_requested_ = true;
+    }
+
+    @Override
+    public void onAttach(Myo myo, long timestamp) {
+        record(MyoEventLog.ATTACH, myo, timestamp, 0, 0, 0, 0);
+        flush();
+    }
+
+    @Override
+    public void onDetach(Myo myo, long timestamp) {
+        record(MyoEventLog.DETACH, myo, timestamp, 0, 0, 0, 0);
+        flush();
+    }
+
+    @Override
+    public void onConnect(Myo myo, long timestamp) {
+        record(MyoEventLog.CONNECT, myo, timestamp, 0, 0, 0, 0);
+    }
+
+    @Override
+    public void onDisconnect(Myo myo, long timestamp) {
+        record(MyoEventLog.DISCONNECT, myo, timestamp, 0, 0, 0, 0);
+        flush();
+    }
+
+    @Override
+    public void onArmSync(Myo myo, long timestamp, Arm arm, XDirection xDirection) {
+        record(MyoEventLog.ARM_SYNC, myo, timestamp, arm.ordinal(), xDirection.ordinal(), 0, 0);
+    }
+
+    @Override
+    public void onArmUnsync(Myo myo, long timestamp) {
+        record(MyoEventLog.ARM_UNSYNC, myo, timestamp, Arm.UNKNOWN.ordinal(), XDirection.UNKNOWN.ordinal(), 0, 0);
+    }
+
+    @Override
+    public void onUnlock(Myo myo, long timestamp) {
+        record(MyoEventLog.UNLOCK, myo, timestamp, 0, 0, 0, 0);
+    }
+
+    @Override
+    public void onLock(Myo myo, long timestamp) {
+        record(MyoEventLog.LOCK, myo, timestamp, 0, 0, 0, 0);
+    }
+
+    @Override
+    public void onPose(Myo myo, long timestamp, Pose pose) {
+        record(MyoEventLog.POSE, myo, timestamp, pose.ordinal(), 0, 0, 0);
+    }
+
+    @Override
+    public void onOrientationData(Myo myo, long timestamp, Quaternion rotation) {
+        record(MyoEventLog.ORIENTATION, myo, timestamp,
+                (float) rotation.x(), (float) rotation.y(), (float) rotation.z(), (float) rotation.w());
+    }
+
+    @Override
+    public void onGyroscopeData(Myo myo, long timestamp, Vector3 gyro) {
+        record(MyoEventLog.GYRO, myo, timestamp, (float) gyro.x(), (float) gyro.y(), (float) gyro.z(), 0);
+    }
+
+    @Override
+    public void onAccelerometerData(Myo myo, long timestamp, Vector3 accel) {
+        record(MyoEventLog.ACCEL, myo, timestamp, (float) accel.x(), (float) accel.y(), (float) accel.z(), 0);
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Joins the orientation, gyro and accel callbacks of one Myo sample into a single frame.
+ *
+ * The SDK delivers the three parts back to back with the same Myo timestamp. A frame is handed to
+ * the sink as soon as it is complete; a frame that is still partial when a newer timestamp arrives
+ * or when its timeout expires is handed over with the missing parts flagged. Single-threaded,
+ * nothing is allocated per sample.
+ */
+class ImuFrameAssembler {
+    public static final int ORIENTATION = 1;
+    public static final int GYRO = 2;
+    public static final int ACCEL = 4;
+    public static final int COMPLETE = ORIENTATION | GYRO | ACCEL;
+
+    public interface Sink {
+        // parts is a mask of the fields present, the others are 0
+        void onFrame(long stamp, int parts, double[] orientation, double[] gyro, double[] accel);
+    }
+
+    private final Sink sink_;
+    private final long timeout_ns_;
+
+    private boolean pending_ = false;
+    private long timestamp_;
+    private long stamp_;
+    private long deadline_ns_;
+    private int parts_;
+    private final double[] orientation_ = new double[4];
+    private final double[] gyro_ = new double[3];
+    private final double[] accel_ = new double[3];
+
+    // Read by the diagnostics thread
+    private volatile long frames_ = 0;
+    private volatile long partial_ = 0;
+
+    public ImuFrameAssembler(long timeout_ns, Sink sink) {
+        timeout_ns_ = timeout_ns;
+        sink_ = sink;
+    }
+
+    // Adds one part of a sample, stamp is its ROS time [ns] and now_ns the current ROS time
+    public void add(int part, long timestamp, long stamp, long now_ns, double a, double b, double c, double d) {
+        if (pending_ && (timestamp != timestamp_ || (parts_ & part) != 0)) {
+            emit();
+        }
+
+        if (!pending_) {
+            pending_ = true;
+            timestamp_ = timestamp;
+            stamp_ = stamp;
+            deadline_ns_ = now_ns + timeout_ns_;
+            parts_ = 0;
+        }
+
+        switch (part) {
+            case ORIENTATION:
+                orientation_[0] = a;
+                orientation_[1] = b;
+                orientation_[2] = c;
+                orientation_[3] = d;
+                break;
+            case GYRO:
+                gyro_[0] = a;
+                gyro_[1] = b;
+                gyro_[2] = c;
+                break;
+            case ACCEL:
+                accel_[0] = a;
+                accel_[1] = b;
+                accel_[2] = c;
+                break;
+        }
+        parts_ |= part;
+
+        if (parts_ == COMPLETE) {
+            emit();
+        }
+    }
+
+    // Hands over a partial frame whose timeout has expired
+    public void expire(long now_ns) {
+        if (pending_ && now_ns >= deadline_ns_) {
+            emit();
+        }
+    }
+
+    // Nanoseconds until the pending frame expires, -1 if there is none
+    public long timeUntilExpiry(long now_ns) {
+        return pending_ ? Math.max(0, deadline_ns_ - now_ns) : -1;
+    }
+
+    private void emit() {
+        pending_ = false;
+        if ((parts_ & ORIENTATION) == 0) zero(orientation_);
+        if ((parts_ & GYRO) == 0) zero(gyro_);
+        if ((parts_ & ACCEL) == 0) zero(accel_);
+
+        frames_++;
+        if (parts_ != COMPLETE) partial_++;
+        sink_.onFrame(stamp_, parts_, orientation_, gyro_, accel_);
+    }
+
+    private static void zero(double[] v) {
+        for (int i = 0; i < v.length; i++) v[i] = 0;
+    }
+
+    public long getFrames() {
+        return frames_;
+    }
+
+    public long getPartial() {
+        return partial_;
+    }
+}
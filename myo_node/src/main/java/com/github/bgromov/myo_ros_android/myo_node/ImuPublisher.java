@@ -29,35 +29,38 @@ package com.github.bgromov.myo_ros_android.myo_node;
  * POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import org.ros.node.ConnectedNode;
 import org.ros.namespace.GraphName;
 
-import geometry_msgs.PoseStamped;
+import diagnostic_msgs.DiagnosticStatus;
 import geometry_msgs.QuaternionStamped;
-import geometry_msgs.TransformStamped;
 import sensor_msgs.Imu;
-import tf2_msgs.TFMessage;
 
 import org.ros.node.Node;
 import org.ros.node.NodeMain;
+import org.ros.node.parameter.ParameterTree;
 import org.ros.node.topic.Publisher;
 
-import org.ros.rosjava_geometry.Quaternion;
-
 /**
  * @author chadrockey@gmail.com (Chad Rockey)
  * @author axelfurlan@gmail.com (Axel Furlan)
  */
-public class ImuPublisher implements NodeMain
+public class ImuPublisher implements NodeMain, DiagnosticsPublisher.Source
 {
 
     private String fixed_frame_id;
@@ -68,14 +71,41 @@ public class ImuPublisher implements NodeMain
     private SensorManager sensorManager;
     private ConnectedNode node_;
     private Publisher<Imu> pub_imu;
-    private Publisher<TFMessage> pub_tf;
     private Publisher<QuaternionStamped> pub_rotation;
+    private final TfBroadcaster tf;
+
+    // Set from /idsia/android/*_covariance on start, row-major 3x3
+    private double[] orientationCovariance = {0.001,0,0, 0,0.001,0, 0,0,0.001};
+    private double[] angularVelocityCovariance = {0.0025,0,0, 0,0.0025,0, 0,0,0.0025};
+    private double[] linearAccelerationCovariance = {0.01,0,0, 0,0.01,0, 0,0,0.01};
+
+    private static final String TAG = "ImuPublisher";
+
+    // Opt-in hardware FIFO batching: events are delivered in bursts at most this late, 0 for off
+    private int batchLatencyMs = 0;
+
+    // Sensor event times to ROS time, updated from the sensor thread
+    private final SensorClockMapper clockMapper = new SensorClockMapper();
+
+    // Written by the sensor thread only, read by the diagnostics thread
+    private volatile long rotationCount = 0;
+    private volatile long imuCount = 0;
+    // Sensor event to publish [us]
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Previously reported values, diagnostics thread only
+    private long reportedRotation = 0;
+    private long reportedImu = 0;
+    private final long[] reportedLatency = new long[LatencyHistogram.BUCKETS];
 
     private class ImuThread extends Thread
     {
         private final SensorManager sensorManager;
         private SensorListener sensorListener;
         private Looper threadLooper;
+        // Sensors registered with batching, each reports its own flush completion. Counted on this
+        // thread, read by the thread calling flush().
+        private volatile int registered = 0;
 
         private final Sensor accelSensor;
         private final Sensor gyroSensor;
@@ -95,15 +125,58 @@ public class ImuPublisher implements NodeMain
         {
             Looper.prepare();
             this.threadLooper = Looper.myLooper();
-//            this.sensorManager.registerListener(this.sensorListener, this.accelSensor, SensorManager.SENSOR_DELAY_FASTEST);
-//            this.sensorManager.registerListener(this.sensorListener, this.gyroSensor, SensorManager.SENSOR_DELAY_FASTEST);
-            this.sensorManager.registerListener(this.sensorListener, this.quatSensor, SensorManager.SENSOR_DELAY_GAME);
+            // Deliver on this thread rather than the main looper
+            Handler handler = new Handler(this.threadLooper);
+            register(this.accelSensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
+            register(this.gyroSensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
+            register(this.quatSensor, SensorManager.SENSOR_DELAY_GAME, handler);
             Looper.loop();
         }
 
+        private void register(Sensor sensor, int delay, Handler handler)
+        {
+            if (sensor == null)
+            {
+                return;
+            }
+            if (isBatching())
+            {
+                this.sensorManager.registerListener(this.sensorListener, sensor, delay, batchLatencyMs * 1000, handler);
+                Log.i(TAG, "Batching " + sensor.getName() + " up to " + batchLatencyMs
+                        + " ms, hardware FIFO of " + sensor.getFifoMaxEventCount() + " events");
+                this.registered++;
+            }
+            else
+            {
+                this.sensorManager.registerListener(this.sensorListener, sensor, delay, handler);
+            }
+        }
+
+        // Delivers the events still queued in the hardware FIFOs, waits until they are through
+        public void flush(long timeoutMs)
+        {
+            if (!isBatching() || this.registered == 0)
+            {
+                return;
+            }
+            CountDownLatch latch = new CountDownLatch(this.registered);
+            ((BatchingSensorListener) this.sensorListener).flushLatch = latch;
+            if (this.sensorManager.flush(this.sensorListener))
+            {
+                try
+                {
+                    latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
 
         public void shutdown()
         {
+            flush(1000);
             this.sensorManager.unregisterListener(this.sensorListener);
             if(this.threadLooper != null)
             {
@@ -112,42 +185,34 @@ public class ImuPublisher implements NodeMain
         }
     }
 
-    private class SensorListener implements SensorEventListener
+    private class SensorListener implements SensorEventListener, PhoneImuMerger.Sink, PhoneImuMerger.Clock
     {
         private Publisher<Imu> pub_imu;
-        private Publisher<TFMessage> pub_tf;
         private Publisher<geometry_msgs.QuaternionStamped> pub_rotation;
 
-        private boolean hasAccel;
-        private boolean hasGyro;
-        private boolean hasQuat;
-
-        private long accelTime;
-        private long gyroTime;
-        private long quatTime;
+        // Merges and stamps on event time, see PhoneImuMerger
+        private final PhoneImuMerger merger;
 
-        private Imu imu_msg;
-        private TransformStamped geom_tf_msg;
-        private QuaternionStamped rotation_msg;
+        // Nothing is allocated per event: messages come from pools
+        private final MessagePool<Imu> imuPool;
+        private final MessagePool<QuaternionStamped> rotationPool;
 
-        private SensorListener(Publisher<Imu> pub_imu, Publisher<TFMessage> pub_tf, Publisher<QuaternionStamped> pub_rotation,
+        private SensorListener(Publisher<Imu> pub_imu, Publisher<QuaternionStamped> pub_rotation,
                                boolean hasAccel, boolean hasGyro, boolean hasQuat)
         {
             this.pub_imu = pub_imu;
-            this.pub_tf = pub_tf;
             this.pub_rotation = pub_rotation;
 
-            this.hasAccel = hasAccel;
-            this.hasGyro = hasGyro;
-            this.hasQuat = hasQuat;
+            this.merger = new PhoneImuMerger(isBatching() ? batchLatencyMs : 0, hasAccel, hasGyro, hasQuat,
+                    clockMapper, this, this);
 
-            this.accelTime = 0;
-            this.gyroTime = 0;
-            this.quatTime = 0;
-
-            this.imu_msg = this.pub_imu.newMessage();
-            this.geom_tf_msg = node_.getTopicMessageFactory().newFromType(TransformStamped._TYPE);
-            this.rotation_msg = this.pub_rotation.newMessage();
+            this.imuPool = new MessagePool<>(pub_imu, msg -> {
+                msg.getHeader().setFrameId(imu_frame_id);
+                System.arraycopy(orientationCovariance, 0, msg.getOrientationCovariance(), 0, 9);
+                System.arraycopy(angularVelocityCovariance, 0, msg.getAngularVelocityCovariance(), 0, 9);
+                System.arraycopy(linearAccelerationCovariance, 0, msg.getLinearAccelerationCovariance(), 0, 9);
+            });
+            this.rotationPool = new MessagePool<>(pub_rotation, msg -> msg.getHeader().setFrameId(fixed_frame_id));
         }
 
         //	@Override
@@ -155,96 +220,175 @@ public class ImuPublisher implements NodeMain
         {
         }
 
-        public void sendTransform(geometry_msgs.TransformStamped msg) {
-            tf2_msgs.TFMessage tf_msg = pub_tf.newMessage();
-            tf_msg.setTransforms(Arrays.asList(msg));
-            pub_tf.publish(tf_msg);
-        }
-
         //	@Override
         public void onSensorChanged(SensorEvent event)
         {
-            org.ros.message.Time now = node_.getCurrentTime();
-
-            if(event.sensor.getType() == Sensor.TYPE_ACCELEROMETER)
+            float[] values = event.values;
+            switch (event.sensor.getType())
             {
-                this.imu_msg.getLinearAcceleration().setX(event.values[0]);
-                this.imu_msg.getLinearAcceleration().setY(event.values[1]);
-                this.imu_msg.getLinearAcceleration().setZ(event.values[2]);
-
-                double[] tmpCov = {0.01,0,0, 0,0.01,0, 0,0,0.01};// TODO Make Parameter
-                this.imu_msg.setLinearAccelerationCovariance(tmpCov);
-                this.accelTime = event.timestamp;
+                case Sensor.TYPE_ACCELEROMETER:
+                    this.merger.onAccel(event.timestamp, values[0], values[1], values[2]);
+                    break;
+                case Sensor.TYPE_GYROSCOPE:
+                    this.merger.onGyro(event.timestamp, values[0], values[1], values[2]);
+                    break;
+                case Sensor.TYPE_ROTATION_VECTOR:
+                    this.merger.onRotationVector(event.timestamp, values);
+                    break;
             }
-            else if(event.sensor.getType() == Sensor.TYPE_GYROSCOPE)
-            {
-                this.imu_msg.getAngularVelocity().setX(event.values[0]);
-                this.imu_msg.getAngularVelocity().setY(event.values[1]);
-                this.imu_msg.getAngularVelocity().setZ(event.values[2]);
-                double[] tmpCov = {0.0025,0,0, 0,0.0025,0, 0,0,0.0025};// TODO Make Parameter
-                this.imu_msg.setAngularVelocityCovariance(tmpCov);
-                this.gyroTime = event.timestamp;
-            }
-            else if(event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR)
-            {
-                float[] quaternion = new float[4];
-
-
-                SensorManager.getQuaternionFromVector(quaternion, event.values);
-
-                org.ros.rosjava_geometry.Quaternion quat_tmp = (new Quaternion(quaternion[1], quaternion[2], quaternion[3], quaternion[0])).normalize();
+        }
 
-                quat_tmp.toQuaternionMessage(this.imu_msg.getOrientation());
+        @Override
+        public long sensorNanos()
+        {
+            return SystemClock.elapsedRealtimeNanos();
+        }
 
-                double[] tmpCov = {0.001,0,0, 0,0.001,0, 0,0,0.001};// TODO Make Parameter
-                this.imu_msg.setOrientationCovariance(tmpCov);
-                this.quatTime = event.timestamp;
+        @Override
+        public long rosNanos()
+        {
+            return node_.getCurrentTime().totalNsecs();
+        }
 
-                this.rotation_msg.getHeader().setFrameId(fixed_frame_id);
-                this.rotation_msg.getHeader().setStamp(now);
-                this.rotation_msg.setQuaternion(this.imu_msg.getOrientation());
+        // Batched events arrive late and in bursts, so the stamp is always the event time
+        @Override
+        public void onRotation(long event_ns, long stamp_ns, double x, double y, double z, double w)
+        {
+            QuaternionStamped rotation_msg = this.rotationPool.next();
+            RosTime.setNanos(rotation_msg.getHeader().getStamp(), stamp_ns);
+            rotation_msg.getQuaternion().setX(x);
+            rotation_msg.getQuaternion().setY(y);
+            rotation_msg.getQuaternion().setZ(z);
+            rotation_msg.getQuaternion().setW(w);
+
+            tf.sendTransform(fixed_frame_id, imu_frame_id, stamp_ns, 0, 0, 0, x, y, z, w);
+            pub_rotation.publish(rotation_msg);
+
+            rotationCount++;
+            latency.record((SystemClock.elapsedRealtimeNanos() - event_ns) / 1000);
+        }
 
-                this.geom_tf_msg.setChildFrameId(imu_frame_id);
-                this.geom_tf_msg.setHeader(this.rotation_msg.getHeader());
-                this.geom_tf_msg.getTransform().setRotation(this.imu_msg.getOrientation());
+        // One complete sample at the event time of the fastest sensor
+        @Override
+        public void onImu(long stamp_ns, int present, double[] accel, double[] gyro, double[] rotation)
+        {
+            Imu imu_msg = this.imuPool.next();
+
+            RosTime.setNanos(imu_msg.getHeader().getStamp(), stamp_ns);
+
+            imu_msg.getLinearAcceleration().setX(accel[0]);
+            imu_msg.getLinearAcceleration().setY(accel[1]);
+            imu_msg.getLinearAcceleration().setZ(accel[2]);
+            imu_msg.getLinearAccelerationCovariance()[0] =
+                    (present & (1 << SensorMerger.ACCEL)) != 0 ? linearAccelerationCovariance[0] : -1;
+
+            imu_msg.getAngularVelocity().setX(gyro[0]);
+            imu_msg.getAngularVelocity().setY(gyro[1]);
+            imu_msg.getAngularVelocity().setZ(gyro[2]);
+            imu_msg.getAngularVelocityCovariance()[0] =
+                    (present & (1 << SensorMerger.GYRO)) != 0 ? angularVelocityCovariance[0] : -1;
+
+            imu_msg.getOrientation().setX(rotation[0]);
+            imu_msg.getOrientation().setY(rotation[1]);
+            imu_msg.getOrientation().setZ(rotation[2]);
+            imu_msg.getOrientation().setW(rotation[3]);
+            imu_msg.getOrientationCovariance()[0] =
+                    (present & (1 << SensorMerger.ROTATION)) != 0 ? orientationCovariance[0] : -1;
+
+            pub_imu.publish(imu_msg);
+            imuCount++;
+        }
+    }
 
-                this.sendTransform(this.geom_tf_msg);
-                pub_rotation.publish(this.rotation_msg);
+    // SensorEventListener2 is API 19, like batching itself, so it only gets loaded when batching
+    private class BatchingSensorListener extends SensorListener implements SensorEventListener2
+    {
+        private volatile CountDownLatch flushLatch;
 
-                this.geom_tf_msg = node_.getTopicMessageFactory().newFromType(TransformStamped._TYPE);
-                this.rotation_msg = this.pub_rotation.newMessage();
-            }
+        private BatchingSensorListener(Publisher<Imu> pub_imu, Publisher<QuaternionStamped> pub_rotation,
+                                       boolean hasAccel, boolean hasGyro, boolean hasQuat)
+        {
+            super(pub_imu, pub_rotation, hasAccel, hasGyro, hasQuat);
+        }
 
-            // Currently storing event times in case I filter them in the future.  Otherwise they are used to determine if all sensors have reported.
-            if((this.accelTime != 0 || !this.hasAccel) && (this.gyroTime != 0 || !this.hasGyro) && (this.quatTime != 0 || !this.hasQuat))
+        @Override
+        public void onFlushCompleted(Sensor sensor)
+        {
+            CountDownLatch latch = this.flushLatch;
+            if (latch != null)
             {
-//                // Convert event.timestamp (nanoseconds uptime) into system time, use that as the header stamp
-//                long time_delta_millis = System.currentTimeMillis() - SystemClock.uptimeMillis();
-//                this.imu_msg.getHeader().setStamp(Time.fromMillis(time_delta_millis + event.timestamp/1000000));
-                this.imu_msg.getHeader().setStamp(now);
-                this.imu_msg.getHeader().setFrameId(imu_frame_id);
+                latch.countDown();
+            }
+        }
+    }
 
-                pub_imu.publish(this.imu_msg);
+    private boolean isBatching()
+    {
+        return this.batchLatencyMs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
 
-                // Create a new message
-                this.imu_msg = this.pub_imu.newMessage();
+    // Events still queued in the sensor hardware are delivered before this returns, or after the timeout
+    public void flush()
+    {
+        if (this.imuThread != null)
+        {
+            this.imuThread.flush(1000);
+        }
+    }
 
-                // Reset times
-                this.accelTime = 0;
-                this.gyroTime = 0;
-                this.quatTime = 0;
-            }
+    // Row-major 3x3 covariance from a parameter, def if it is not a list of 9 numbers
+    private static double[] covariance(ParameterTree params, String name, double[] def)
+    {
+        List<?> list = params.getList(name, null);
+        if (list == null || list.size() != 9)
+        {
+            return def;
         }
+        double[] cov = new double[9];
+        for (int i = 0; i < 9; i++)
+        {
+            cov[i] = ((Number) list.get(i)).doubleValue();
+        }
+        return cov;
     }
 
-    public ImuPublisher(SensorManager manager)
+    public ImuPublisher(SensorManager manager, TfBroadcaster tf)
     {
         this.sensorManager = manager;
+        this.tf = tf;
         this.node_ns = "idsia";
         this.fixed_frame_id = "/world";
         this.imu_frame_id = "body_imu";
     }
 
+    public void report(DiagnosticsPublisher.Report r)
+    {
+        r.setName(node_ns + "/android", android.os.Build.MODEL);
+
+        long rotation = rotationCount;
+        long imu = imuCount;
+        double rate = r.rate(rotation, reportedRotation);
+        r.add("rotation_rate_hz", rate);
+        r.add("imu_rate_hz", r.rate(imu, reportedImu));
+        reportedRotation = rotation;
+        reportedImu = imu;
+
+        if (rate == 0)
+        {
+            r.level(DiagnosticStatus.WARN, "No rotation vector events");
+        }
+
+        r.add("batch_latency_ms", isBatching() ? batchLatencyMs : 0);
+        r.add("clock_offset_ns", clockMapper.getOffsetNs());
+        r.add("clock_uncertainty_us", clockMapper.getUncertaintyNs() / 1000);
+        r.add("clock_steps", clockMapper.getSteps());
+        if (clockMapper.getReadings() > 0 && clockMapper.getRejected() * 2 > clockMapper.getReadings())
+        {
+            r.level(DiagnosticStatus.WARN, "Most sensor clock readings rejected");
+        }
+        r.addLatency("latency", latency, reportedLatency);
+    }
+
     public GraphName getDefaultNodeName()
     {
         return GraphName.of("myo_ros_android/imu_node");
@@ -260,10 +404,17 @@ public class ImuPublisher implements NodeMain
         {
             this.node_ = node;
 
-//            ParameterTree params = node_.getParameterTree();
+            ParameterTree params = node_.getParameterTree();
+            this.orientationCovariance = covariance(params, "/idsia/android/orientation_covariance", this.orientationCovariance);
+            this.angularVelocityCovariance = covariance(params, "/idsia/android/angular_velocity_covariance", this.angularVelocityCovariance);
+            this.linearAccelerationCovariance = covariance(params, "/idsia/android/linear_acceleration_covariance", this.linearAccelerationCovariance);
+            this.batchLatencyMs = Math.max(0, params.getInteger("/idsia/android/batch_latency_ms", this.batchLatencyMs));
+            if (this.batchLatencyMs > 0 && !isBatching())
+            {
+                Log.w(TAG, "Sensor batching needs API 19, delivering events right away");
+            }
 
             this.pub_imu = node.newPublisher(node_ns + "/android/imu", Imu._TYPE);
-            this.pub_tf = node.newPublisher("/tf", tf2_msgs.TFMessage._TYPE);
             this.pub_rotation = node.newPublisher(node_ns + "/android/rotation", QuaternionStamped._TYPE);
             // 	Determine if we have the various needed sensors
             boolean hasAccel = false;
@@ -289,7 +440,9 @@ public class ImuPublisher implements NodeMain
                 hasQuat = true;
             }
 
-            this.sensorListener = new SensorListener(pub_imu, pub_tf, pub_rotation, hasAccel, hasGyro, hasQuat);
+            this.sensorListener = isBatching()
+                    ? new BatchingSensorListener(pub_imu, pub_rotation, hasAccel, hasGyro, hasQuat)
+                    : new SensorListener(pub_imu, pub_rotation, hasAccel, hasGyro, hasQuat);
             this.imuThread = new ImuThread(this.sensorManager, sensorListener);
             this.imuThread.start();
         }
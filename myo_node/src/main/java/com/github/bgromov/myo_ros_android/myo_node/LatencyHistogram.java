@@ -0,0 +1,70 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies in microseconds, 8 buckets per power of two (about 12%
+ * resolution) up to about 2 minutes.
+ *
+ * Recording is lock-free and allocation-free but assumes a single writer thread. Any thread can
+ * take a snapshot; counts are cumulative, readers diff two snapshots to get an interval.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_MSB = 27;
+
+    public static final int BUCKETS = (MAX_MSB - SUB_BITS + 2) * SUB;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+
+    // Writer thread only
+    public void record(long us) {
+        int i = bucket(us);
+        counts_.lazySet(i, counts_.get(i) + 1);
+    }
+
+    // Copies the cumulative counts into out, which must hold BUCKETS entries
+    public void snapshot(long[] out) {
+        for (int i = 0; i < BUCKETS; i++) {
+            out[i] = counts_.get(i);
+        }
+    }
+
+    static int bucket(long us) {
+        if (us < SUB) return (int) Math.max(us, 0);
+        int msb = 63 - Long.numberOfLeadingZeros(us);
+        if (msb > MAX_MSB) return BUCKETS - 1;
+        int sub = (int) (us >>> (msb - SUB_BITS)) & (SUB - 1);
+        return (msb - SUB_BITS + 1) * SUB + sub;
+    }
+
+    // Largest value that falls into bucket i
+    static long upperBound(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        long lower = (long) (SUB + i % SUB) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public static long total(long[] counts) {
+        long n = 0;
+        for (long c : counts) n += c;
+        return n;
+    }
+
+    // Upper bound of the bucket holding the q-quantile (0..1), -1 if there are no samples
+    public static long percentile(long[] counts, double q) {
+        long n = total(counts);
+        if (n == 0) return -1;
+
+        long rank = (long) Math.ceil(q * n);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(counts.length - 1);
+    }
+}
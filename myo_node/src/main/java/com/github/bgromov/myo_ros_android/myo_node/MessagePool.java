@@ -0,0 +1,49 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.ros.node.topic.Publisher;
+
+/**
+ * Fixed ring of preallocated messages for a single publisher.
+ *
+ * rosjava serializes published messages asynchronously from its outgoing queue, so a message
+ * handed to {@link Publisher#publish} must not be touched again until it has left that queue.
+ * The pool therefore has to be deeper than the publisher queue; {@link #DEFAULT_SIZE} leaves
+ * twice the default rosjava queue capacity as margin.
+ */
+class MessagePool<T> {
+    public static final int DEFAULT_SIZE = 32;
+
+    public interface Initializer<T> {
+        void init(T msg);
+    }
+
+    private final Object[] messages_;
+    private int next_ = 0;
+
+    public MessagePool(Publisher<T> publisher, int size, Initializer<T> initializer) {
+        messages_ = new Object[size];
+        for (int i = 0; i < size; i++) {
+            T msg = publisher.newMessage();
+            if (initializer != null) {
+                initializer.init(msg);
+            }
+            messages_[i] = msg;
+        }
+    }
+
+    public MessagePool(Publisher<T> publisher, Initializer<T> initializer) {
+        this(publisher, DEFAULT_SIZE, initializer);
+    }
+
+    // Not thread-safe: each pool is meant to be used from a single publishing thread
+    @SuppressWarnings("unchecked")
+    public T next() {
+        T msg = (T) messages_[next_];
+        next_ = (next_ + 1) % messages_.length;
+        return msg;
+    }
+
+    public int size() {
+        return messages_.length;
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import com.thalmic.myo.Myo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps attached Myo objects to their nodes. Written from onAttach()/onDetach(), read from every
+ * DeviceListener callback and from the reconnect task, hence the concurrent map: lookups are
+ * lock-free and never see a half-registered device.
+ */
+class MyoDispatchTable {
+    private final ConcurrentMap<Myo, MyoNode> nodes_ = new ConcurrentHashMap<>();
+
+    // Returns the node of the Myo in any state, or null if the Myo is not attached. The node itself
+    // decides whether a sample is queued, so callbacks need nothing beyond this lookup.
+    public MyoNode get(Myo myo) {
+        return nodes_.get(myo);
+    }
+
+    // Returns false if the Myo has already been registered
+    public boolean add(Myo myo, MyoNode node) {
+        return nodes_.putIfAbsent(myo, node) == null;
+    }
+
+    public MyoNode remove(Myo myo) {
+        return nodes_.remove(myo);
+    }
+
+    public boolean contains(Myo myo) {
+        return nodes_.containsKey(myo);
+    }
+
+    public int size() {
+        return nodes_.size();
+    }
+
+    public List<Myo> myos() {
+        return new ArrayList<>(nodes_.keySet());
+    }
+
+    // Snapshot of the nodes, for shutting them all down
+    public List<MyoNode> nodes() {
+        return new ArrayList<>(nodes_.values());
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Routes replayed Hub events to Myo nodes, the counterpart of MyoService's device listener for
+ * events that do not come from the SDK. Nodes are created and torn down by the owner on attach
+ * and detach; events of unattached devices are ignored, as with the Hub.
+ */
+class MyoEventDispatcher implements MyoEventLog.Visitor {
+    public interface Nodes {
+        // Returns null if no node should be created for this Myo
+        MyoNode attach(String mac, String name, long timestamp);
+
+        void detach(MyoNode node);
+    }
+
+    private final Nodes nodes_;
+    private final String[] macs_ = new String[MyoEventLog.MAX_DEVICES];
+    private final String[] names_ = new String[MyoEventLog.MAX_DEVICES];
+    private final MyoNode[] attached_ = new MyoNode[MyoEventLog.MAX_DEVICES];
+
+    public MyoEventDispatcher(Nodes nodes) {
+        nodes_ = nodes;
+    }
+
+    @Override
+    public void onDevice(int device, String mac, String name) {
+        macs_[device] = mac;
+        names_[device] = name;
+    }
+
+    @Override
+    public void onEvent(int type, int device, long timestamp, long arrival_ns, float a, float b, float c, float d) {
+        MyoNode node = attached_[device];
+
+        switch (type) {
+            case MyoEventLog.ATTACH:
+                if (node == null && macs_[device] != null) {
+                    attached_[device] = nodes_.attach(macs_[device], names_[device], timestamp);
+                }
+                return;
+            case MyoEventLog.DETACH:
+                if (node != null) {
+                    attached_[device] = null;
+                    nodes_.detach(node);
+                }
+                return;
+        }
+
+        if (node == null) return;
+
+        switch (type) {
+            case MyoEventLog.ORIENTATION:
+                node.onOrientationData(timestamp, a, b, c, d);
+                break;
+            case MyoEventLog.GYRO:
+                node.onGyroscopeData(timestamp, a, b, c);
+                break;
+            case MyoEventLog.ACCEL:
+                node.onAccelerometerData(timestamp, a, b, c);
+                break;
+            case MyoEventLog.POSE:
+                node.onPose(timestamp, (int) a);
+                break;
+            case MyoEventLog.ARM_SYNC:
+                node.onArmSync(timestamp, (int) a, (int) b);
+                break;
+            case MyoEventLog.ARM_UNSYNC:
+                node.onArmUnsync(timestamp, (int) a, (int) b);
+                break;
+            case MyoEventLog.UNLOCK:
+                node.onUnlock(timestamp);
+                break;
+            case MyoEventLog.LOCK:
+                node.onLock(timestamp);
+                break;
+        }
+    }
+
+    // Detaches all nodes still attached, e.g. when a replay ends
+    public void detachAll() {
+        for (int i = 0; i < attached_.length; i++) {
+            if (attached_[i] != null) {
+                nodes_.detach(attached_[i]);
+                attached_[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only binary log of Myo Hub events.
+ *
+ * Layout (little endian): an 8 byte header (magic, version), then records. A device record
+ * (DEVICE, index, 6 byte MAC, name length, UTF-8 name) precedes the first event of each armband.
+ * Every other record is (type, device index, Myo timestamp [us], arrival [ns, monotonic],
+ * values) with a fixed number of float values per type; enum ordinals are stored as floats too.
+ * Myo sensor data is 16-bit fixed point, so floats are lossless.
+ *
+ * Files are read through a sliding memory-mapped window, a truncated last record (the app died
+ * while writing) ends the log.
+ */
+final class MyoEventLog {
+    public static final int MAGIC = 0x45594d4d; // "MMYE"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+
+    // Record types
+    public static final int DEVICE = 0;
+    public static final int ATTACH = 1;
+    public static final int DETACH = 2;
+    public static final int CONNECT = 3;
+    public static final int DISCONNECT = 4;
+    public static final int ORIENTATION = 5;
+    public static final int GYRO = 6;
+    public static final int ACCEL = 7;
+    public static final int POSE = 8;
+    public static final int ARM_SYNC = 9;
+    public static final int ARM_UNSYNC = 10;
+    public static final int UNLOCK = 11;
+    public static final int LOCK = 12;
+
+    // Number of float values per event type
+    private static final int[] VALUES = { 0, 0, 0, 0, 0, 4, 3, 3, 1, 2, 2, 0, 0 };
+    private static final int EVENT_HEADER = 1 + 1 + 8 + 8;
+    private static final int MAX_RECORD = 1 + 1 + 6 + 1 + 255;
+    public static final int MAX_DEVICES = 256;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private MyoEventLog() {
+    }
+
+    public interface Visitor {
+        void onDevice(int device, String mac, String name);
+
+        // Unused values are 0
+        void onEvent(int type, int device, long timestamp, long arrival_ns, float a, float b, float c, float d);
+    }
+
+    /**
+     * Appends records to a log file. Not thread-safe, records are buffered and written whenever
+     * the buffer fills up, on flush() and on close().
+     */
+    public static final class Writer {
+        private final FileChannel channel_;
+        private final ByteBuffer buffer_ = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private long records_ = 0;
+
+        public Writer(File file) throws IOException {
+            channel_ = new FileOutputStream(file, true).getChannel();
+            if (channel_.size() == 0) {
+                buffer_.putInt(MAGIC).putInt(VERSION);
+            }
+        }
+
+        public void device(int device, String mac, String name) throws IOException {
+            byte[] bytes = name != null ? name.getBytes(UTF8) : new byte[0];
+            int length = Math.min(bytes.length, 255);
+            reserve(1 + 1 + 6 + 1 + length);
+
+            long packed = MyoRegistry.packMac(mac);
+            buffer_.put((byte) DEVICE).put((byte) device);
+            for (int shift = 40; shift >= 0; shift -= 8) {
+                buffer_.put((byte) (packed >>> shift));
+            }
+            buffer_.put((byte) length).put(bytes, 0, length);
+            records_++;
+        }
+
+        public void event(int type, int device, long timestamp, long arrival_ns,
+                          float a, float b, float c, float d) throws IOException {
+            int values = VALUES[type];
+            reserve(EVENT_HEADER + 4 * values);
+
+            buffer_.put((byte) type).put((byte) device).putLong(timestamp).putLong(arrival_ns);
+            if (values > 0) buffer_.putFloat(a);
+            if (values > 1) buffer_.putFloat(b);
+            if (values > 2) buffer_.putFloat(c);
+            if (values > 3) buffer_.putFloat(d);
+            records_++;
+        }
+
+        private void reserve(int size) throws IOException {
+            if (buffer_.remaining() < size) flush();
+        }
+
+        public void flush() throws IOException {
+            buffer_.flip();
+            while (buffer_.hasRemaining()) {
+                channel_.write(buffer_);
+            }
+            buffer_.clear();
+        }
+
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel_.close();
+            }
+        }
+
+        public long getRecords() {
+            return records_;
+        }
+    }
+
+    /**
+     * Reads a log through a memory-mapped window, so that captures of any length can be replayed
+     * without loading them into the heap.
+     */
+    public static final class Reader {
+        private static final long WINDOW = 64L * 1024 * 1024;
+
+        private final RandomAccessFile file_;
+        private final FileChannel channel_;
+        private final long size_;
+        private MappedByteBuffer window_;
+        private long window_start_;
+
+        public Reader(File file) throws IOException {
+            file_ = new RandomAccessFile(file, "r");
+            channel_ = file_.getChannel();
+            size_ = channel_.size();
+
+            map(0);
+            if (size_ < HEADER_SIZE || window_.getInt() != MAGIC) {
+                close();
+                throw new IOException("Not a Myo event log: " + file);
+            }
+            int version = window_.getInt();
+            if (version != VERSION) {
+                close();
+                throw new IOException("Unsupported Myo event log version " + version + ": " + file);
+            }
+        }
+
+        private void map(long position) throws IOException {
+            window_start_ = position;
+            window_ = channel_.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size_ - position));
+            window_.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Hands the next record to the visitor, returns false at the end of the log
+        public boolean next(Visitor visitor) throws IOException {
+            long position = window_start_ + window_.position();
+            if (window_.remaining() < MAX_RECORD && window_start_ + window_.limit() < size_) {
+                map(position);
+            }
+            if (!window_.hasRemaining()) return false;
+
+            window_.mark();
+            try {
+                read(visitor);
+                return true;
+            } catch (java.nio.BufferUnderflowException e) {
+                // Truncated last record
+                window_.reset();
+                return false;
+            }
+        }
+
+        private void read(Visitor visitor) throws IOException {
+            int type = window_.get() & 0xff;
+            int device = window_.get() & 0xff;
+
+            if (type == DEVICE) {
+                long mac = 0;
+                for (int i = 0; i < 6; i++) {
+                    mac = (mac << 8) | (window_.get() & 0xff);
+                }
+                byte[] name = new byte[window_.get() & 0xff];
+                window_.get(name);
+                visitor.onDevice(device, MyoRegistry.unpackMac(mac), new String(name, UTF8));
+                return;
+            }
+            if (type >= VALUES.length) {
+                throw new EOFException("Corrupt record of type " + type + " at " + (window_start_ + window_.position() - 2));
+            }
+
+            long timestamp = window_.getLong();
+            long arrival_ns = window_.getLong();
+            int values = VALUES[type];
+            float a = values > 0 ? window_.getFloat() : 0;
+            float b = values > 1 ? window_.getFloat() : 0;
+            float c = values > 2 ? window_.getFloat() : 0;
+            float d = values > 3 ? window_.getFloat() : 0;
+            visitor.onEvent(type, device, timestamp, arrival_ns, a, b, c, d);
+        }
+
+        public void close() throws IOException {
+            file_.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single ROS node hosting the topics of every armband, instead of one node per armband.
+ *
+ * Each hosted MyoNode creates its publishers and subscribers on this node, with the same topic
+ * names as a standalone node, and one loop on this node's thread drains the sample rings of all
+ * of them. Armbands are added and removed at any time from any thread; the changes are applied
+ * by the loop. That saves a slave server, a TCPROS server, the master registrations and a
+ * publishing thread per armband.
+ *
+ * Starting an armband talks to the parameter server and the master, so it runs on a separate
+ * starter thread and the loop only takes the armband over once it is ready. Armbands already
+ * hosted keep publishing meanwhile.
+ *
+ * Shutting the host down stops every armband it hosts or is still starting.
+ */
+public class MyoHostNode extends AbstractNodeMain {
+    private static final String TAG = "MyoHostNode";
+    private static final int DRAIN_BATCH = 64;
+    private final long idle_timeout_ns_ = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ConcurrentLinkedQueue<MyoNode> added_ = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<MyoNode> removed_ = new ConcurrentLinkedQueue<>();
+    // Started on the starter thread, waiting to be taken over by the loop
+    private final ConcurrentLinkedQueue<MyoNode> ready_ = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<MyoNode> failed_ = new ConcurrentLinkedQueue<>();
+    private final ExecutorService starter_ = Executors.newSingleThreadExecutor();
+    // Loop thread only, guarded by this so that onShutdown() can take them over
+    private final List<MyoNode> nodes_ = new ArrayList<>();
+    private final List<MyoNode> starting_ = new ArrayList<>();
+    // Removed while starting, stopped once they are ready
+    private final List<MyoNode> cancelled_ = new ArrayList<>();
+
+    private ConnectedNode node_;
+    private volatile Thread loop_thread_;
+    // Guarded by this
+    private boolean shut_down_ = false;
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("myo_ros_android/myo_host");
+    }
+
+    // Starts publishing an armband, samples it queues meanwhile are kept in its ring
+    public void add(MyoNode node) {
+        added_.add(node);
+        wake();
+    }
+
+    public void remove(MyoNode node) {
+        removed_.add(node);
+        wake();
+    }
+
+    private void wake() {
+        Thread t = loop_thread_;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        node_ = connectedNode;
+        node_.executeCancellableLoop(new CancellableLoop() {
+            @Override
+            protected void setup() {
+                loop_thread_ = Thread.currentThread();
+            }
+
+            @Override
+            protected void loop() throws InterruptedException {
+                int drained = 0;
+                long timeout_ns = idle_timeout_ns_;
+                // Only ever contended by onShutdown()
+                synchronized (MyoHostNode.this) {
+                    if (shut_down_) {
+                        cancel();
+                        return;
+                    }
+
+                    update();
+
+                    for (int i = 0; i < nodes_.size(); i++) {
+                        MyoNode node = nodes_.get(i);
+                        drained += node.publishPending(DRAIN_BATCH);
+                        long expiry = node.expirePending();
+                        if (expiry >= 0) timeout_ns = Math.min(timeout_ns, Math.max(expiry, 1));
+                    }
+                }
+
+                if (drained == 0 && added_.isEmpty() && removed_.isEmpty()
+                        && ready_.isEmpty() && failed_.isEmpty()) {
+                    // Every ring wakes this thread when a sample is offered
+                    LockSupport.parkNanos(this, timeout_ns);
+                }
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        });
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        // The loop takes nothing over and starts nothing from now on
+        synchronized (this) {
+            shut_down_ = true;
+        }
+
+        // Let a start in progress finish, or fail once interrupted, before collecting the nodes
+        starter_.shutdownNow();
+        try {
+            if (!starter_.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(TAG, "A Myo is still starting, it is not stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            // Started but not taken over yet, cancelled or not
+            MyoNode n;
+            while ((n = ready_.poll()) != null) {
+                n.stop();
+            }
+            for (MyoNode hosted : nodes_) {
+                hosted.setWaiter(null);
+                hosted.stop();
+            }
+            Log.i(TAG, "Stopped " + nodes_.size() + " hosted armbands");
+            nodes_.clear();
+            starting_.clear();
+            cancelled_.clear();
+        }
+    }
+
+    // Starts an armband on the starter thread and hands it back to the loop
+    private void start(MyoNode node) {
+        starter_.execute(() -> {
+            try {
+                node.start(node_);
+                ready_.add(node);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Couldn't start Myo " + node.getMyoID(), e);
+                failed_.add(node);
+            }
+            wake();
+        });
+    }
+
+    // Applies the pending additions and removals, on the loop thread holding the lock
+    private void update() {
+        MyoNode node;
+        while ((node = added_.poll()) != null) {
+            starting_.add(node);
+            start(node);
+        }
+        while ((node = failed_.poll()) != null) {
+            starting_.remove(node);
+            cancelled_.remove(node);
+        }
+        while ((node = ready_.poll()) != null) {
+            starting_.remove(node);
+            if (cancelled_.remove(node)) {
+                node.stop();
+                continue;
+            }
+            node.setWaiter(loop_thread_);
+            nodes_.add(node);
+            Log.i(TAG, "Hosting Myo " + node.getMyoID() + ", " + nodes_.size() + " armbands");
+        }
+        while ((node = removed_.poll()) != null) {
+            if (nodes_.remove(node)) {
+                node.setWaiter(null);
+                node.stop();
+                Log.i(TAG, "Stopped hosting Myo " + node.getMyoID() + ", " + nodes_.size() + " armbands");
+            } else if (starting_.contains(node)) {
+                cancelled_.add(node);
+            }
+        }
+    }
+}
@@ -5,25 +5,31 @@ import android.util.Log;
 import com.google.common.primitives.UnsignedInteger;
 import com.thalmic.myo.Myo;
 
+import org.ros.concurrent.CancellableLoop;
 import org.ros.message.MessageListener;
 import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
 import org.ros.node.parameter.ParameterTree;
 import org.ros.node.topic.Publisher;
 import org.ros.node.topic.Subscriber;
+import org.ros.time.TimeProvider;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.ByteOrder;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.lang.String;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import diagnostic_msgs.DiagnosticStatus;
 import geometry_msgs.QuaternionStamped;
 import geometry_msgs.TransformStamped;
 import geometry_msgs.Vector3Stamped;
@@ -31,13 +37,21 @@ import myo_ros.GestureStamped;
 import myo_ros.Vibration;
 import std_msgs.Bool;
 
-import tf2_msgs.TFMessage;
-
 /**
  * Created by 0xff on 07/04/17.
  */
 
-public class MyoNode extends AbstractNodeMain {
+public class MyoNode extends AbstractNodeMain implements DiagnosticsPublisher.Source {
+    // Lifecycle of a node: attached to the Hub, registered with the master, synced to ROS time
+    public static final int STATE_ATTACHED = 0;
+    public static final int STATE_STARTED = 1;
+    public static final int STATE_SYNCED = 2;
+
+    // Entries of the EMG ring, and the most packets of one notification decoded together
+    private static final int EMG_PACKET = 0;
+    private static final int EMG_MALFORMED = 1;
+    private static final int EMG_MAX_PACKETS = 4;
+
     private ParameterTree params_;
     private final String fixed_frame_id_ = "/world";
     private String frame_id_;
@@ -48,124 +62,450 @@ public class MyoNode extends AbstractNodeMain {
     }
 
     private int id_;
+    // Null for replayed armbands, which only have a MAC address
     private Myo myo_;
-    private long mTimeOffsetUs = 0;
-    private boolean use_ros_timestamps_ = false;
+    private final String mac_;
+    // The MAC packed as in MyoRegistry
+    private final long mac_key_;
+    private boolean use_ros_timestamps_ = true;
 
     private Publisher<QuaternionStamped> pub_rotation_;
     private Publisher<myo_ros.GestureStamped> pub_gesture_;
     private Publisher<geometry_msgs.Vector3Stamped> pub_gyro_;
     private Publisher<geometry_msgs.Vector3Stamped> pub_accel_;
     private Publisher<myo_ros.StatusStamped> pub_status_;
+    private Publisher<sensor_msgs.Image> pub_emg_;
+    private Publisher<sensor_msgs.Imu> pub_imu_;
     private Subscriber<myo_ros.Vibration> sub_vibration_;
     private Subscriber<std_msgs.Bool> sub_unlock_override_;
 
-    private Publisher<tf2_msgs.TFMessage> pub_tf_;
+    private final TfBroadcaster tf_;
+
+    // Reuse preallocated messages on the orientation/IMU hot path instead of allocating per sample
+    private boolean pooled_messages_ = true;
+    private MessagePool<QuaternionStamped> pool_rotation_;
+    private MessagePool<geometry_msgs.Vector3Stamped> pool_gyro_;
+    private MessagePool<geometry_msgs.Vector3Stamped> pool_accel_;
+    private MessagePool<sensor_msgs.Image> pool_emg_;
+    private MessagePool<sensor_msgs.Imu> pool_imu_;
+
+    // Per-topic rate limiting, configured by <topic>_rate_hz and <topic>_decimation under /idsia/myo
+    private Decimator dec_rotation_;
+    private Decimator dec_tf_;
+    private Decimator dec_gyro_;
+    private Decimator dec_accel_;
+
+    // Per-topic backpressure after rate limiting, configured by <topic>_backpressure, <topic>_max_age_ms
+    // and <topic>_queue_size. Sample ages are taken against the publish loop's ROS clock, congestion
+    // from the publisher's outgoing connections. Staged samples are retried every FLUSH_RETRY_NS.
+    private static final long FLUSH_RETRY_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private final PublishGate.Clock gate_clock_ = this::rosNowNs;
+    private PublishGate gate_rotation_;
+    private PublishGate gate_gyro_;
+    private PublishGate gate_accel_;
+
+    // Optional fused topic, one sensor_msgs/Imu per sample joined from the three callbacks
+    private boolean publish_imu_ = false;
+    private long imu_frame_timeout_ms_ = 10;
+    private ImuFrameAssembler imu_assembler_;
+
+    // Raw EMG. The BLE callback thread only stamps the notifications and queues their packets to
+    // emg_ring_, they are decoded and published in batches of emg_batch_ samples by the publish
+    // loop. Only advertised when an EMG source has called enableEmg() before the node starts.
+    // The app has no such source yet: myosdk does not expose raw EMG, a GATT client subscribed to
+    // the EMG characteristics would have to call enableEmg() and onEmgData().
+    private volatile boolean emg_enabled_ = false;
+    private volatile EmgDecoder emg_decoder_;
+    private int emg_batch_ = 20;
+    private final SampleRing emg_ring_ = new SampleRing();
+    private final RosClock emg_clock_;
+    // Packets of the notification being reassembled, publish loop only
+    private final byte[] emg_packets_ = new byte[EMG_MAX_PACKETS * EmgDecoder.PACKET_SIZE];
+    private int emg_length_ = 0;
+    private long emg_arrival_ns_ = 0;
+    private final SampleRing.Consumer emg_consumer_ = this::onEmgPacket;
 
     public ConnectedNode node_;
 
-    public long sync_count_ = 0;
-    public boolean time_synced_ = false;
+    private final AtomicInteger state_ = new AtomicInteger(STATE_ATTACHED);
 
     public long acc_offset = 0;
 
-    private Map<Long, Long> time_stats_ = new HashMap<>();
-
-    private Map<Long, org.ros.message.Time> time_cache_ = new LinkedHashMap<Long, org.ros.message.Time>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Long, org.ros.message.Time> eldest) {
-            return  this.size() > 10;
-        }
-    };
+    // Hub callbacks only queue samples here, they are published from the node's own thread
+    private final SampleRing ring_ = new SampleRing();
+    private final PublishLoop publish_loop_ = new PublishLoop();
+
+    // Orientation, gyro and accel with their ROS stamps, for the cross-armband synchronizer
+    private volatile SampleRing sync_ring_;
+
+    // Refined with every orientation sample, also after the node is synced
+    private final DriftTimeMapper time_mapper_ = new DriftTimeMapper();
+
+    // Myo timestamp -> ROS arrival time [ns], shared by all callbacks of the same sample.
+    // Only touched from the Hub callback thread.
+    private final TimestampCache time_cache_ = new TimestampCache();
+    // Same clock as node_.getCurrentTime(), but usable before the node has started
+    private final RosClock hub_clock_;
+
+    // Hot-path metrics, written by the publish loop only and read by the diagnostics thread
+    private final AtomicLongArray published_ = new AtomicLongArray(SampleRing.KINDS);
+    private volatile long unsynced_ = 0;
+    // publish() calls on all topics but /tf, after decimation and backpressure
+    private volatile long messages_published_ = 0;
+    private volatile long last_sync_timestamp_ = 0;
+    // Myo timestamp (as ROS time) to publish [us]. With ROS timestamps this is only the queueing delay.
+    private final LatencyHistogram latency_ = new LatencyHistogram();
+
+    // ROS time at publish, publish loop only
+    private final RosClock publish_clock_;
+
+    // Previously reported values, diagnostics thread only
+    private final long[] reported_ = new long[SampleRing.KINDS];
+    private final long[] reported_latency_ = new long[LatencyHistogram.BUCKETS];
+    private long reported_dropped_ = 0;
+    private long reported_unsynced_ = 0;
+    private final long[] reported_gate_dropped_ = new long[3];
+    // In and out counts of the rotation, tf, gyro and accel decimators
+    private final long[] reported_decimation_ = new long[8];
+
+    public MyoNode(Myo myo, int id, long timestamp, TfBroadcaster tf, TimeProvider time_provider){
+        this(myo, myo.getMacAddress(), id, timestamp, tf, time_provider);
+    }
 
-    public MyoNode(Myo myo, int id, long timestamp){
+    public MyoNode(Myo myo, String mac, int id, long timestamp, TfBroadcaster tf, TimeProvider time_provider){
         myo_ = myo;
+        mac_ = mac;
+        mac_key_ = MyoRegistry.packMac(mac);
         id_ = id;
+        tf_ = tf;
+        hub_clock_ = new RosClock(time_provider);
+        publish_clock_ = new RosClock(time_provider);
+        emg_clock_ = new RosClock(time_provider);
+    }
+
+    public String getMacAddress() {
+        return mac_;
+    }
+
+    public int getState() {
+        return state_.get();
     }
 
-    public boolean syncToRosTime(long timestamp) {
+    public boolean isTimeSynced() {
+        return state_.get() == STATE_SYNCED;
+    }
+
+    // Feeds the clock offset estimator, returns true once the node is synced to ROS time
+    public boolean syncToRosTime(long timestamp, long arrival_ns) {
         if (use_ros_timestamps_) {
-            time_synced_ = true;
+            state_.compareAndSet(STATE_STARTED, STATE_SYNCED);
             return true;
         }
-        if (!time_synced_) {
-            if (sync_count_ < 250) {
-                org.ros.message.Time now = node_.getCurrentTime();
-                long offset = now.totalNsecs() / 1000 - timestamp;
 
-                //            long delta = (mTimeOffsetUs - offset);
-                //            Log.i("Myo" + id_, "Time offset: " + mTimeOffsetUs + " Delta: " + delta);
+        // Myo timestamps are in microseconds
+        time_mapper_.add(timestamp, arrival_ns / 1000);
+        last_sync_timestamp_ = timestamp;
 
-                time_stats_.put(timestamp, offset);
+        if (!time_mapper_.isReady()) return false;
 
-                //            mTimeOffsetUs = offset;
+        if (state_.compareAndSet(STATE_STARTED, STATE_SYNCED)) {
+            Log.i("Myo" + id_, "Time offset with ROS [us]: " + time_mapper_.getOffset(timestamp));
+        }
+        return true;
+    }
 
-                sync_count_++;
+    // Maps a Myo timestamp [us] to ROS time [ns], given the ROS time at which the sample arrived
+    public long myoToRosTime(long timestamp, long arrival_ns) {
+        if (use_ros_timestamps_) {
+            return arrival_ns;
+        }
 
-                return false;
-            } else {
-                List<Long> a = new ArrayList<>(time_stats_.values());
-                Collections.sort(a);
-                if (a.size() % 2 == 0) {
-                    mTimeOffsetUs = (a.get(a.size() / 2) + a.get(a.size() / 2 - 1)) / 2;
-                } else
-                {
-                    mTimeOffsetUs = a.get((a.size() - 1) / 2);
-                }
-                time_synced_ = true;
-                Log.i("Myo" + id_, "Median time offset with ROS [us]: " + mTimeOffsetUs);
-            }
+        return time_mapper_.map(timestamp) * 1000;
+    }
+
+    public DriftTimeMapper getTimeMapper() {
+        return time_mapper_;
+    }
+
+    // Returns ROS time [ns] of the first callback carrying this Myo timestamp
+    private long arrivalTime(long timestamp) {
+        long cached = time_cache_.get(timestamp, -1);
+        if (cached < 0) {
+            // One clock read per Myo sample, its orientation, gyro and accel callbacks share it
+            cached = hub_clock_.nowNs();
+            time_cache_.put(timestamp, cached);
         }
-        return true;
+        return cached;
+    }
+
+    // The following are called on the Hub callback thread. They only timestamp and queue the sample.
+    // Samples arriving while the node is still starting are buffered in the ring, bounded by its
+    // capacity, and published once the publishers exist.
+
+    public void onOrientationData(long timestamp, double x, double y, double z, double w) {
+        offer(SampleRing.ORIENTATION, timestamp, x, y, z, w);
     }
 
-    public org.ros.message.Time myoToRosTime(long timestamp) {
-        org.ros.message.Time now = node_.getCurrentTime();
+    public void onGyroscopeData(long timestamp, double x, double y, double z) {
+        offer(SampleRing.GYRO, timestamp, x, y, z, 0);
+    }
+
+    public void onAccelerometerData(long timestamp, double x, double y, double z) {
+        offer(SampleRing.ACCEL, timestamp, x, y, z, 0);
+    }
+
+    public void onPose(long timestamp, int pose) {
+        offer(SampleRing.POSE, timestamp, pose, 0, 0, 0);
+    }
+
+    public void onArmSync(long timestamp, int arm, int x_direction) {
+        offer(SampleRing.ARM_SYNC, timestamp, arm, x_direction, 0, 0);
+    }
+
+    public void onArmUnsync(long timestamp, int arm, int x_direction) {
+        offer(SampleRing.ARM_UNSYNC, timestamp, arm, x_direction, 0, 0);
+    }
 
-        if (mTimeOffsetUs == 0) {
-            mTimeOffsetUs =  now.subtract(org.ros.message.Time.fromNano(timestamp * 1000)).totalNsecs() / 1000;
+    public void onUnlock(long timestamp) {
+        offer(SampleRing.UNLOCK, timestamp, 0, 0, 0, 0);
+    }
+
+    public void onLock(long timestamp) {
+        offer(SampleRing.LOCK, timestamp, 0, 0, 0, 0);
+    }
+
+    private void offer(int kind, long timestamp, double a, double b, double c, double d) {
+        ring_.offer(kind, timestamp, arrivalTime(timestamp), a, b, c, d);
+    }
+
+    // Advertises the emg topic, to be called by the EMG source before the node starts
+    public void enableEmg() {
+        emg_enabled_ = true;
+    }
+
+    // Raw EMG notification payload(s), called from the BLE callback thread. Each 16-byte packet is
+    // queued as one entry: bytes 0-7 in the timestamp, 8-11 and 12-15 in a and b, and the number
+    // of packets still to come from the same notification in c. Dropped until the node has started.
+    public void onEmgData(byte[] payload, int offset, int length) {
+        if (emg_decoder_ == null) return;
+
+        long arrival_ns = emg_clock_.nowNs();
+        if (length <= 0 || length % EmgDecoder.PACKET_SIZE != 0) {
+            emg_ring_.offer(EMG_MALFORMED, 0, arrival_ns, 0, 0, 0, 0);
+            return;
         }
-        // Myo timestamp is in microseconds
-        long new_ts = timestamp + mTimeOffsetUs;
 
-        if (use_ros_timestamps_) {
-            if (!time_cache_.containsKey(timestamp)) {
-                time_cache_.put(timestamp, now);
-            } else {
-//                Log.i("Myo" + id_, " timestamp already exists: " + timestamp);
+        int packets = length / EmgDecoder.PACKET_SIZE;
+        for (int p = 0; p < packets; p++) {
+            int o = offset + p * EmgDecoder.PACKET_SIZE;
+            emg_ring_.offer(EMG_PACKET, getLong(payload, o), arrival_ns,
+                    getInt(payload, o + 8), getInt(payload, o + 12), packets - 1 - p, 0);
+        }
+    }
+
+    // Reassembles the queued notifications and feeds them to the decoder, on the publish loop
+    private void onEmgPacket(int kind, long bytes, long arrival_ns, double a, double b, double c, double d) {
+        EmgDecoder decoder = emg_decoder_;
+        if (decoder == null) return;
+
+        if (kind == EMG_MALFORMED) {
+            decoder.countMalformed();
+            return;
+        }
+
+        // A notification whose last packets were dropped by a full ring ends with the next arrival
+        if (emg_length_ > 0 && arrival_ns != emg_arrival_ns_) {
+            decodeEmg(decoder);
+        }
+        emg_arrival_ns_ = arrival_ns;
+        putLong(emg_packets_, emg_length_, bytes);
+        putInt(emg_packets_, emg_length_ + 8, (int) a);
+        putInt(emg_packets_, emg_length_ + 12, (int) b);
+        emg_length_ += EmgDecoder.PACKET_SIZE;
+
+        if (c == 0 || emg_length_ == emg_packets_.length) {
+            decodeEmg(decoder);
+        }
+    }
+
+    private void decodeEmg(EmgDecoder decoder) {
+        decoder.decode(emg_packets_, 0, emg_length_, emg_arrival_ns_);
+        emg_length_ = 0;
+    }
+
+    private static long getLong(byte[] b, int o) {
+        return ((long) getInt(b, o) << 32) | (getInt(b, o + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] b, int o) {
+        return (b[o] & 0xff) << 24 | (b[o + 1] & 0xff) << 16 | (b[o + 2] & 0xff) << 8 | (b[o + 3] & 0xff);
+    }
+
+    private static void putLong(byte[] b, int o, long v) {
+        putInt(b, o, (int) (v >>> 32));
+        putInt(b, o + 4, (int) v);
+    }
+
+    private static void putInt(byte[] b, int o, int v) {
+        b[o] = (byte) (v >>> 24);
+        b[o + 1] = (byte) (v >>> 16);
+        b[o + 2] = (byte) (v >>> 8);
+        b[o + 3] = (byte) v;
+    }
+
+    public SampleRing getSampleRing() {
+        return ring_;
+    }
+
+    long getMessagesPublished() {
+        return messages_published_;
+    }
+
+    // Registers the thread that drains this node's rings, see SampleRing#setWaiter(). null to unregister.
+    void setWaiter(Thread waiter) {
+        ring_.setWaiter(waiter);
+        emg_ring_.setWaiter(waiter);
+    }
+
+    // Also queues the synced IMU samples to ring, null to stop. The publish loop is the producer.
+    void setSyncRing(SampleRing ring) {
+        sync_ring_ = ring;
+    }
+
+    // Publishes up to max queued samples on the calling thread, which must be the only consumer,
+    // and whatever backpressure held back if the publishers have caught up. Normally only called
+    // by the publish loop.
+    int publishPending(int max) {
+        int drained = ring_.drain(publish_loop_, max);
+        drained += emg_ring_.drain(emg_consumer_, max);
+        gate_rotation_.flush();
+        gate_gyro_.flush();
+        gate_accel_.flush();
+        return drained;
+    }
+
+    private long rosNowNs() {
+        return publish_clock_.nowNs();
+    }
+
+    // Hands over fused IMU frames whose timeout has expired. Returns the nanoseconds until
+    // publishPending() has to run again, for the next frame timeout or to retry samples held back
+    // by backpressure, or -1 if nothing is pending. Same thread as publishPending().
+    long expirePending() {
+        long next = -1;
+        if (gate_rotation_.getStaged() > 0 || gate_gyro_.getStaged() > 0 || gate_accel_.getStaged() > 0) {
+            next = FLUSH_RETRY_NS;
+        }
+        if (imu_assembler_ == null) return next;
+
+        long now = rosNowNs();
+        imu_assembler_.expire(now);
+        long expiry = imu_assembler_.timeUntilExpiry(now);
+        if (expiry < 0) return next;
+        return next < 0 ? expiry : Math.min(next, expiry);
+    }
+
+    // Drains the sample ring on the node's own thread
+    private class PublishLoop extends CancellableLoop implements SampleRing.Consumer {
+        private static final int DRAIN_BATCH = 64;
+        private final long idle_timeout_ns_ = TimeUnit.MILLISECONDS.toNanos(100);
+
+        @Override
+        protected void setup() {
+            // ring_ registers the thread itself while it waits
+            emg_ring_.setWaiter(Thread.currentThread());
+        }
+
+        @Override
+        protected void loop() throws InterruptedException {
+            int drained = publishPending(DRAIN_BATCH);
+
+            long timeout_ns = idle_timeout_ns_;
+            long expiry = expirePending();
+            if (expiry >= 0) timeout_ns = Math.min(timeout_ns, Math.max(expiry, 1));
+
+            if (drained == 0 && emg_ring_.isEmpty()) {
+                ring_.await(timeout_ns);
             }
-            // Get cached time
-//            Log.i("Myo" + id_, " cached timestamp: " + time_cache_.get(timestamp));
-            return time_cache_.get(timestamp);
-        } else {
-//            return new org.ros.message.Time((int) (new_ts / 1000000), (int) ((new_ts % 1000000) * 1000));
-            return org.ros.message.Time.fromNano(new_ts * 1000);
+        }
+
+        @Override
+        public void onSample(int kind, long timestamp, long arrival_ns, double a, double b, double c, double d) {
+            // Orientation samples drive the time synchronization, everything else is dropped until synced
+            if (kind == SampleRing.ORIENTATION ? !syncToRosTime(timestamp, arrival_ns) : !isTimeSynced()) {
+                unsynced_++;
+                return;
+            }
+
+            long stamp = myoToRosTime(timestamp, arrival_ns);
+
+            SampleRing sync = sync_ring_;
+            if (sync != null && kind <= SampleRing.ACCEL) {
+                sync.offer(kind, timestamp, stamp, a, b, c, d);
+            }
+
+            switch (kind) {
+                case SampleRing.ORIENTATION:
+                    dec_rotation_.add(stamp, a, b, c, d);
+                    dec_tf_.add(stamp, a, b, c, d);
+                    if (imu_assembler_ != null) {
+                        imu_assembler_.add(ImuFrameAssembler.ORIENTATION, timestamp, stamp, rosNowNs(), a, b, c, d);
+                    }
+                    break;
+                case SampleRing.GYRO:
+                    dec_gyro_.add(stamp, a, b, c, 0);
+                    if (imu_assembler_ != null) {
+                        imu_assembler_.add(ImuFrameAssembler.GYRO, timestamp, stamp, rosNowNs(), a, b, c, 0);
+                    }
+                    break;
+                case SampleRing.ACCEL:
+                    dec_accel_.add(stamp, a, b, c, 0);
+                    if (imu_assembler_ != null) {
+                        imu_assembler_.add(ImuFrameAssembler.ACCEL, timestamp, stamp, rosNowNs(), a, b, c, 0);
+                    }
+                    break;
+                case SampleRing.POSE:
+                    publishGesture(stamp, (int) a);
+                    break;
+                default:
+                    publishStatus(stamp, kind, (int) a, (int) b);
+                    break;
+            }
+
+            published_.lazySet(kind, published_.get(kind) + 1);
+            latency_.record((rosNowNs() - stamp) / 1000);
         }
     }
 
     @Override
     public void onStart(ConnectedNode connectedNode) {
-        node_ = connectedNode;
-
-        // Kinda tf broadcaster
-        pub_tf_ = node_.newPublisher("/tf", tf2_msgs.TFMessage._TYPE);
+        start(connectedNode);
+        node_.executeCancellableLoop(publish_loop_);
+    }
 
+    // Creates the publishers and subscribers on connectedNode, which is either this node or a
+    // MyoHostNode hosting several armbands. A host also takes over the publish loop.
+    void start(ConnectedNode connectedNode) {
+        node_ = connectedNode;
 
         params_ = node_.getParameterTree();
         List<String> macs = new ArrayList<String>();
         params_.getList("/idsia/myo/static_myo_ids", macs);
-        params_.getBoolean("/idsia/myo/use_ros_timestamps", use_ros_timestamps_);
-
-        use_ros_timestamps_ = true;
+        use_ros_timestamps_ = params_.getBoolean("/idsia/myo/use_ros_timestamps", use_ros_timestamps_);
+        pooled_messages_ = params_.getBoolean("/idsia/myo/pooled_messages", pooled_messages_);
+        emg_batch_ = Math.max(1, params_.getInteger("/idsia/myo/emg_batch", emg_batch_));
+        publish_imu_ = params_.getBoolean("/idsia/myo/publish_imu", publish_imu_);
+        imu_frame_timeout_ms_ = params_.getInteger("/idsia/myo/imu_frame_timeout_ms", (int) imu_frame_timeout_ms_);
+        ring_.setOverflowPolicy(
+                SampleRing.OverflowPolicy.fromString(params_.getString("/idsia/myo/queue_overflow", ""),
+                        SampleRing.OverflowPolicy.DROP_NEWEST),
+                TimeUnit.MILLISECONDS.toNanos(params_.getInteger("/idsia/myo/queue_block_timeout_ms", 5)));
 
         if (use_ros_timestamps_) Log.i("onStart", "Using ROS timestamps for Myo messages");
 
-        for (int i = 0; i < macs.size(); i++) {
-            if (myo_.getMacAddress().replace(":", "-").toLowerCase() == macs.get(i).replace(":", "-").toLowerCase()) {
-                id_ = i + 1;
-                break;
-            }
-        }
+        // Static IDs override the ones given by the registry
+        int static_id = MyoRegistry.staticId(macs, mac_key_);
+        if (static_id > 0) id_ = static_id;
 
         ns_ = "/idsia/myo" + Integer.toString(id_);
         frame_id_ = ns_ + "_frame";
@@ -175,6 +515,42 @@ public class MyoNode extends AbstractNodeMain {
         pub_gyro_ = node_.newPublisher(ns_ + "/gyro", Vector3Stamped._TYPE);
         pub_accel_ = node_.newPublisher(ns_ + "/accel", Vector3Stamped._TYPE);
         pub_status_ = node_.newPublisher(ns_ + "/status", myo_ros.StatusStamped._TYPE);
+        if (emg_enabled_) {
+            pub_emg_ = node_.newPublisher(ns_ + "/emg", sensor_msgs.Image._TYPE);
+        }
+
+        if (pooled_messages_) {
+            pool_rotation_ = new MessagePool<>(pub_rotation_, msg -> msg.getHeader().setFrameId(fixed_frame_id_));
+            pool_gyro_ = new MessagePool<>(pub_gyro_, msg -> msg.getHeader().setFrameId(fixed_frame_id_));
+            pool_accel_ = new MessagePool<>(pub_accel_, msg -> msg.getHeader().setFrameId(fixed_frame_id_));
+            if (pub_emg_ != null) {
+                pool_emg_ = new MessagePool<>(pub_emg_, this::initEmgMessage);
+            }
+        }
+
+        if (pub_emg_ != null) {
+            emg_decoder_ = new EmgDecoder(emg_batch_, this::publishEmg);
+        }
+
+        // The gates follow the decimators, whose period they allow for in the sample age
+        dec_rotation_ = decimator("rotation", true, (stamp, x, y, z, w) -> gate_rotation_.add(stamp, x, y, z, w));
+        dec_tf_ = decimator("tf", true, this::broadcastRotation);
+        dec_gyro_ = decimator("gyro", false, (stamp, x, y, z, w) -> gate_gyro_.add(stamp, x, y, z, w));
+        dec_accel_ = decimator("accel", false, (stamp, x, y, z, w) -> gate_accel_.add(stamp, x, y, z, w));
+
+        gate_rotation_ = gate("rotation", dec_rotation_, pub_rotation_, this::publishRotation);
+        gate_gyro_ = gate("gyro", dec_gyro_, pub_gyro_,
+                (stamp, x, y, z, w) -> publishVector(pub_gyro_, pool_gyro_, stamp, x, y, z));
+        gate_accel_ = gate("accel", dec_accel_, pub_accel_,
+                (stamp, x, y, z, w) -> publishVector(pub_accel_, pool_accel_, stamp, x, y, z));
+
+        if (publish_imu_) {
+            pub_imu_ = node_.newPublisher(ns_ + "/imu", sensor_msgs.Imu._TYPE);
+            if (pooled_messages_) {
+                pool_imu_ = new MessagePool<>(pub_imu_, msg -> msg.getHeader().setFrameId(frame_id_));
+            }
+            imu_assembler_ = new ImuFrameAssembler(TimeUnit.MILLISECONDS.toNanos(imu_frame_timeout_ms_), this::publishImu);
+        }
 
         sub_vibration_ = node_.newSubscriber(ns_ + "/vibration", myo_ros.Vibration._TYPE);
 
@@ -201,9 +577,198 @@ public class MyoNode extends AbstractNodeMain {
             }
         });
 
-        synchronized (this) {
-            this.notifyAll();
+        state_.compareAndSet(STATE_ATTACHED, STATE_STARTED);
+
+        Log.i("Myo" + id_, "Started, replaying " + ring_.depth() + " samples buffered during startup");
+    }
+
+    // Unregisters the topics of a hosted armband, the host node itself keeps running
+    void stop() {
+        emg_decoder_ = null;
+        for (Publisher<?> pub : new Publisher<?>[] { pub_rotation_, pub_gesture_, pub_gyro_, pub_accel_, pub_status_, pub_emg_, pub_imu_ }) {
+            if (pub != null) pub.shutdown();
+        }
+        if (sub_vibration_ != null) sub_vibration_.shutdown();
+        if (sub_unlock_override_ != null) sub_unlock_override_.shutdown();
+        logStatistics();
+    }
+
+    private Decimator decimator(String topic, boolean quaternion, Decimator.Sink sink) {
+        double rate = params_.getDouble("/idsia/myo/" + topic + "_rate_hz", 0.0);
+        Decimator.Mode mode = Decimator.Mode.fromString(
+                params_.getString("/idsia/myo/" + topic + "_decimation", ""), Decimator.Mode.AVERAGE);
+        if (rate > 0) {
+            Log.i("Myo" + id_, "Limiting " + topic + " to " + rate + " Hz (" + mode.name().toLowerCase() + ")");
+        }
+        return Decimator.forRate(rate, mode, quaternion, sink);
+    }
+
+    private PublishGate gate(String topic, Decimator dec, Publisher<?> pub, Decimator.Sink sink) {
+        PublishGate.Policy policy = PublishGate.Policy.fromString(
+                params_.getString("/idsia/myo/" + topic + "_backpressure", ""), PublishGate.Policy.PUBLISH_ALL);
+        int depth = params_.getInteger("/idsia/myo/" + topic + "_queue_size", PublishGate.DEFAULT_DEPTH);
+        long max_age_ms = Math.max(1, params_.getInteger("/idsia/myo/" + topic + "_max_age_ms",
+                (int) TimeUnit.NANOSECONDS.toMillis(PublishGate.DEFAULT_MAX_AGE_NS)));
+        // A decimated sample is up to a period old when it comes out (AVERAGE stamps the window's
+        // mean, half a period back), that alone doesn't make it stale
+        long max_age_ns = TimeUnit.MILLISECONDS.toNanos(max_age_ms) + dec.getPeriodNs();
+
+        OutgoingProbe outgoing = OutgoingProbe.of(pub);
+        if (outgoing == null) {
+            Log.w("Myo" + id_, "Can't see the outgoing connections of " + topic + ", backpressure only from sample age");
+        }
+        if (policy != PublishGate.Policy.PUBLISH_ALL) {
+            Log.i("Myo" + id_, "Backpressure on " + topic + ": " + policy.name().toLowerCase()
+                    + " when congested or older than " + TimeUnit.NANOSECONDS.toMillis(max_age_ns) + " ms"
+                    + (policy == PublishGate.Policy.DROP_OLDEST ? ", keeping " + depth : ""));
+        }
+        return new PublishGate(policy, depth, max_age_ns, gate_clock_, outgoing, sink);
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        logStatistics();
+    }
+
+    private void logStatistics() {
+        Log.i("Myo" + id_, "Sample queue: offered " + ring_.getOffered() + ", dropped " + ring_.getDropped()
+                + ", blocked " + ring_.getBlocked() + ", high water " + ring_.getHighWater() + "/" + ring_.capacity());
+        if (gate_rotation_ != null) {
+            Log.i("Myo" + id_, "Dropped under backpressure: rotation " + gate_rotation_.getDropped()
+                    + ", gyro " + gate_gyro_.getDropped() + ", accel " + gate_accel_.getDropped());
+        }
+        if (time_mapper_.isFitted()) {
+            Log.i("Myo" + id_, "Clock skew [ppm]: " + time_mapper_.getSkewPpm() + ", residual [us]: " + time_mapper_.getResidualUs());
+        }
+    }
+
+    // The fields set up by start() are plain, written on the thread that started the node (the host's
+    // starter thread in single-node mode). They are only read here after the STATE_STARTED
+    // transition, which publishes them to this thread.
+    @Override
+    public void report(DiagnosticsPublisher.Report r) {
+        int state = state_.get();
+        boolean started = state != STATE_ATTACHED;
+        r.setName(started ? ns_ : "Myo" + id_, mac_);
+
+        r.add("state", state == STATE_SYNCED ? "synced" : state == STATE_STARTED ? "started" : "attached");
+        if (state == STATE_ATTACHED) {
+            r.level(DiagnosticStatus.WARN, "Node starting");
+        } else if (state == STATE_STARTED) {
+            r.level(DiagnosticStatus.WARN, "Not synced to ROS time");
+        }
+
+        long events = 0, reported_events = 0;
+        for (int kind = 0; kind < SampleRing.KINDS; kind++) {
+            long n = published_.get(kind);
+            switch (kind) {
+                case SampleRing.ORIENTATION:
+                    double rate = r.rate(n, reported_[kind]);
+                    r.add("rotation_rate_hz", rate);
+                    if (state == STATE_SYNCED && rate < 25) {
+                        r.level(DiagnosticStatus.WARN, "Low sample rate");
+                    }
+                    break;
+                case SampleRing.GYRO:
+                    r.add("gyro_rate_hz", r.rate(n, reported_[kind]));
+                    break;
+                case SampleRing.ACCEL:
+                    r.add("accel_rate_hz", r.rate(n, reported_[kind]));
+                    break;
+                default:
+                    events += n;
+                    reported_events += reported_[kind];
+                    break;
+            }
+            reported_[kind] = n;
+        }
+        r.add("events", events - reported_events);
+
+        long dropped = ring_.getDropped();
+        r.add("dropped", dropped - reported_dropped_);
+        r.add("dropped_total", dropped);
+        if (dropped > reported_dropped_) {
+            r.level(DiagnosticStatus.WARN, "Dropping samples");
+        }
+        reported_dropped_ = dropped;
+
+        long unsynced = unsynced_;
+        r.add("unsynced", unsynced - reported_unsynced_);
+        r.add("unsynced_total", unsynced);
+        reported_unsynced_ = unsynced;
+
+        if (started && imu_assembler_ != null) {
+            r.add("imu_frames", imu_assembler_.getFrames());
+            r.add("imu_partial_frames", imu_assembler_.getPartial());
         }
+
+        EmgDecoder emg = emg_decoder_;
+        if (emg != null) {
+            r.add("emg_packets", emg.getPackets());
+            r.add("emg_lost_packets", emg.getLostPackets());
+            r.add("emg_malformed", emg.getMalformed());
+            r.add("emg_queue_dropped", emg_ring_.getDropped());
+        }
+
+        r.add("queue_depth", ring_.depth());
+        r.add("queue_high_water", ring_.getHighWater());
+
+        if (started) {
+            reportDecimator(r, "rotation", dec_rotation_, 0);
+            reportDecimator(r, "tf", dec_tf_, 1);
+            reportDecimator(r, "gyro", dec_gyro_, 2);
+            reportDecimator(r, "accel", dec_accel_, 3);
+
+            reportGate(r, "rotation", gate_rotation_, 0);
+            reportGate(r, "gyro", gate_gyro_, 1);
+            reportGate(r, "accel", gate_accel_, 2);
+        }
+
+        r.addLatency("latency", latency_, reported_latency_);
+
+        if (!use_ros_timestamps_ && time_mapper_.isReady()) {
+            r.add("clock_offset_us", time_mapper_.getOffset(last_sync_timestamp_));
+            r.add("clock_skew_ppm", time_mapper_.getSkewPpm());
+            r.add("clock_residual_us", time_mapper_.getResidualUs());
+        }
+    }
+
+    // Only rate-limited topics are reported
+    private void reportDecimator(DiagnosticsPublisher.Report r, String topic, Decimator dec, int i) {
+        if (dec.getPeriodNs() <= 0) return;
+        long in = dec.getIn();
+        long out = dec.getOut();
+        r.add(topic + "_decimation_in_hz", r.rate(in, reported_decimation_[2 * i]));
+        r.add(topic + "_decimation_out_hz", r.rate(out, reported_decimation_[2 * i + 1]));
+        reported_decimation_[2 * i] = in;
+        reported_decimation_[2 * i + 1] = out;
+    }
+
+    private void reportGate(DiagnosticsPublisher.Report r, String topic, PublishGate gate, int i) {
+        r.add(topic + "_age_ms", gate.getAgeNs() / 1000000);
+        r.add(topic + "_age_high_water_ms", gate.getMaxSeenAgeNs() / 1000000);
+        r.add(topic + "_stale_total", gate.getStale());
+
+        // Outgoing depth: rosjava's own queue, and whether Netty is buffering past its high water mark
+        int depth = gate.getOutgoingDepth();
+        if (depth >= 0) r.add(topic + "_outgoing_queued", depth);
+        r.add(topic + "_congested", gate.isCongested());
+        r.add(topic + "_staged", gate.getStaged());
+        if (gate.isCongested()) {
+            r.level(DiagnosticStatus.WARN, "Subscribers of " + topic + " can't keep up");
+        }
+        if (gate.getPolicy() == PublishGate.Policy.PUBLISH_ALL) {
+            r.add(topic + "_congested_published_total", gate.getCongestedOut());
+            return;
+        }
+
+        long dropped = gate.getDropped();
+        r.add(topic + "_dropped", dropped - reported_gate_dropped_[i]);
+        r.add(topic + "_dropped_total", dropped);
+        if (dropped > reported_gate_dropped_[i]) {
+            r.level(DiagnosticStatus.WARN, "Dropping stale " + topic + " samples");
+        }
+        reported_gate_dropped_[i] = dropped;
     }
 
     @Override
@@ -211,46 +776,160 @@ public class MyoNode extends AbstractNodeMain {
         return GraphName.of("myo_ros_android/myo_node" + Integer.toString(id_));
     }
 
-    public void sendTransform(geometry_msgs.TransformStamped msg) {
-        tf2_msgs.TFMessage tf_msg = pub_tf_.newMessage();
-        tf_msg.setTransforms(Arrays.asList(msg));
-        pub_tf_.publish(tf_msg);
-    }
+    private void publishRotation(long stamp, double x, double y, double z, double w) {
+        QuaternionStamped msg;
 
-    public void publishRotation(geometry_msgs.QuaternionStamped msg) {
-        msg.getHeader().setFrameId(fixed_frame_id_);
+        if (pooled_messages_) {
+            msg = pool_rotation_.next();
+        } else {
+            msg = pub_rotation_.newMessage();
+            msg.getHeader().setFrameId(fixed_frame_id_);
+        }
+
+        RosTime.setNanos(msg.getHeader().getStamp(), stamp);
 
-        geometry_msgs.TransformStamped tfs = node_.getTopicMessageFactory().newFromType(geometry_msgs.TransformStamped._TYPE);
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        w /= norm;
 
-        tfs.setHeader(msg.getHeader());
-        tfs.setChildFrameId(frame_id_);
-        tfs.getTransform().setRotation(msg.getQuaternion());
+        msg.getQuaternion().setX(x);
+        msg.getQuaternion().setY(y);
+        msg.getQuaternion().setZ(z);
+        msg.getQuaternion().setW(w);
 
         pub_rotation_.publish(msg);
-        this.sendTransform(tfs);
+        messages_published_++;
+    }
+
+    private void broadcastRotation(long stamp, double x, double y, double z, double w) {
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        tf_.sendTransform(fixed_frame_id_, frame_id_, stamp, 0, 0, 0, x / norm, y / norm, z / norm, w / norm);
     }
 
-    public void publishGesture(myo_ros.GestureStamped msg) {
+    private void publishGesture(long stamp, int pose) {
+        myo_ros.GestureStamped msg = pub_gesture_.newMessage();
         msg.getHeader().setFrameId(fixed_frame_id_);
+        RosTime.setNanos(msg.getHeader().getStamp(), stamp);
+
+        msg.getGesture().setGesture((byte) pose);
 
         pub_gesture_.publish(msg);
+        messages_published_++;
     }
 
-    public void publishGyro(geometry_msgs.Vector3Stamped msg) {
-        msg.getHeader().setFrameId(fixed_frame_id_);
+    private void publishVector(Publisher<geometry_msgs.Vector3Stamped> pub, MessagePool<geometry_msgs.Vector3Stamped> pool,
+                               long stamp, double x, double y, double z) {
+        geometry_msgs.Vector3Stamped msg;
+        if (pooled_messages_) {
+            msg = pool.next();
+        } else {
+            msg = pub.newMessage();
+            msg.getHeader().setFrameId(fixed_frame_id_);
+        }
+
+        RosTime.setNanos(msg.getHeader().getStamp(), stamp);
+
+        msg.getVector().setX(x);
+        msg.getVector().setY(y);
+        msg.getVector().setZ(z);
 
-        pub_gyro_.publish(msg);
+        pub.publish(msg);
+        messages_published_++;
     }
 
-    public void publishAccel(geometry_msgs.Vector3Stamped msg) {
-        msg.getHeader().setFrameId(fixed_frame_id_);
+    // Myo gyro is in deg/s and accel in g, sensor_msgs/Imu wants rad/s and m/s^2. Missing parts of
+    // a partial frame are flagged with -1 as the first covariance element, as the message defines.
+    static final double DEG_TO_RAD = Math.PI / 180.0;
+    static final double STANDARD_GRAVITY = 9.80665;
 
-        pub_accel_.publish(msg);
+    private void publishImu(long stamp, int parts, double[] q, double[] gyro, double[] accel) {
+        sensor_msgs.Imu msg;
+        if (pooled_messages_) {
+            msg = pool_imu_.next();
+        } else {
+            msg = pub_imu_.newMessage();
+            msg.getHeader().setFrameId(frame_id_);
+        }
+
+        RosTime.setNanos(msg.getHeader().getStamp(), stamp);
+
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        if (norm == 0) norm = 1;
+        msg.getOrientation().setX(q[0] / norm);
+        msg.getOrientation().setY(q[1] / norm);
+        msg.getOrientation().setZ(q[2] / norm);
+        msg.getOrientation().setW(q[3] / norm);
+        msg.getOrientationCovariance()[0] = (parts & ImuFrameAssembler.ORIENTATION) != 0 ? 0 : -1;
+
+        msg.getAngularVelocity().setX(gyro[0] * DEG_TO_RAD);
+        msg.getAngularVelocity().setY(gyro[1] * DEG_TO_RAD);
+        msg.getAngularVelocity().setZ(gyro[2] * DEG_TO_RAD);
+        msg.getAngularVelocityCovariance()[0] = (parts & ImuFrameAssembler.GYRO) != 0 ? 0 : -1;
+
+        msg.getLinearAcceleration().setX(accel[0] * STANDARD_GRAVITY);
+        msg.getLinearAcceleration().setY(accel[1] * STANDARD_GRAVITY);
+        msg.getLinearAcceleration().setZ(accel[2] * STANDARD_GRAVITY);
+        msg.getLinearAccelerationCovariance()[0] = (parts & ImuFrameAssembler.ACCEL) != 0 ? 0 : -1;
+
+        pub_imu_.publish(msg);
+        messages_published_++;
     }
 
-    public void publishStatus(myo_ros.StatusStamped msg) {
+    // EMG batches go out as a signed 8-bit image: one row per sample, one column per channel.
+    // The stamp is that of the first sample, rows follow at the 200 Hz EMG rate.
+    private void initEmgMessage(sensor_msgs.Image msg) {
+        msg.getHeader().setFrameId(frame_id_);
+        msg.setWidth(EmgDecoder.CHANNELS);
+        msg.setEncoding("8SC1");
+        msg.setIsBigendian((byte) 0);
+        msg.setStep(EmgDecoder.CHANNELS);
+        msg.setData(ChannelBuffers.buffer(ByteOrder.LITTLE_ENDIAN, emg_batch_ * EmgDecoder.CHANNELS));
+    }
+
+    private void publishEmg(long[] stamps, byte[] samples, int count) {
+        sensor_msgs.Image msg;
+        if (pooled_messages_) {
+            msg = pool_emg_.next();
+        } else {
+            msg = pub_emg_.newMessage();
+            initEmgMessage(msg);
+        }
+
+        RosTime.setNanos(msg.getHeader().getStamp(), stamps[0]);
+        msg.setHeight(count);
+
+        ChannelBuffer data = msg.getData();
+        data.clear();
+        data.writeBytes(samples, 0, count * EmgDecoder.CHANNELS);
+
+        pub_emg_.publish(msg);
+        messages_published_++;
+    }
+
+    private void publishStatus(long stamp, int kind, int arm, int x_direction) {
+        myo_ros.StatusStamped msg = pub_status_.newMessage();
         msg.getHeader().setFrameId(fixed_frame_id_);
+        RosTime.setNanos(msg.getHeader().getStamp(), stamp);
+
+        switch (kind) {
+            case SampleRing.ARM_SYNC:
+            case SampleRing.ARM_UNSYNC:
+                msg.getStatus().setSync(kind == SampleRing.ARM_SYNC);
+                msg.getStatus().setUnlock(false);
+                msg.getStatus().setArm((byte) arm);
+                msg.getStatus().setDirection((byte) x_direction);
+                break;
+            case SampleRing.UNLOCK:
+                msg.getStatus().setUnlock(true);
+                break;
+            case SampleRing.LOCK:
+                msg.getStatus().setUnlock(false);
+                break;
+        }
 
         pub_status_.publish(msg);
+        messages_published_++;
     }
 }
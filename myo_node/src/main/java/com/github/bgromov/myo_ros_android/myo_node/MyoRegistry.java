@@ -0,0 +1,248 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Known armbands and their short IDs (Myo 1, Myo 2, ...), keyed by the MAC address packed into
+ * the low 48 bits of a long.
+ *
+ * MACs are looked up in an open-addressing table of primitive keys, the lowest free ID comes from
+ * a bit set, and names and MACs are indexed by ID. Every change is handed to the {@link Store} as
+ * a single entry, so persisting one armband never rewrites the others. All methods are
+ * synchronized: the Hub thread, the reconnect task and the UI share one registry.
+ */
+class MyoRegistry {
+    public interface Store {
+        void save(long mac, int id, String name);
+        void delete(long mac);
+        // Completes the pending writes, nothing is written afterwards
+        void close();
+    }
+
+    // Keeps nothing, for read-only copies
+    public static final Store NO_STORE = new Store() {
+        @Override
+        public void save(long mac, int id, String name) {
+        }
+
+        @Override
+        public void delete(long mac) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    // Not a valid device address, marks free slots of the table
+    private static final long EMPTY = -1;
+
+    private final Store store_;
+
+    // Open-addressing table MAC -> ID, linear probing, at most half full
+    private long[] keys_;
+    private int[] ids_;
+    private int size_ = 0;
+
+    // Indexed by ID
+    private long[] macs_ = new long[16];
+    private String[] names_ = new String[16];
+    // IDs of the entries, and all IDs in use including the transient ones. ID 0 is never handed out.
+    private final BitSet known_ = new BitSet();
+    private final BitSet used_ = new BitSet();
+
+    public MyoRegistry(Store store) {
+        store_ = store;
+        keys_ = new long[16];
+        ids_ = new int[16];
+        Arrays.fill(keys_, EMPTY);
+        used_.set(0);
+    }
+
+    public static long packMac(String mac) {
+        String hex = mac.replace(":", "").replace("-", "");
+        if (hex.length() != 12) throw new IllegalArgumentException("Not a MAC address: " + mac);
+        return Long.parseLong(hex, 16);
+    }
+
+    // In the Android format, upper case and colon separated
+    public static String unpackMac(long mac) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (sb.length() > 0) sb.append(':');
+            sb.append(String.format("%02X", (mac >>> shift) & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // Position of a static ID in a list of MAC strings plus one, -1 if absent. Malformed entries are skipped.
+    public static int staticId(List<?> macs, long mac) {
+        for (int i = 0; i < macs.size(); i++) {
+            try {
+                if (packMac(String.valueOf(macs.get(i))) == mac) return i + 1;
+            } catch (IllegalArgumentException e) {
+                // Not a MAC address, it can't match
+            }
+        }
+        return -1;
+    }
+
+    // Fibonacci hashing spreads the addresses that share a vendor prefix
+    private int home(long mac) {
+        return (int) ((mac * 0x9E3779B97F4A7C15L) >>> 40) & (keys_.length - 1);
+    }
+
+    private int slot(long mac) {
+        int mask = keys_.length - 1;
+        int i = home(mac);
+        while (keys_[i] != EMPTY && keys_[i] != mac) i = (i + 1) & mask;
+        return i;
+    }
+
+    private void grow() {
+        long[] keys = keys_;
+        int[] ids = ids_;
+        keys_ = new long[keys.length * 2];
+        ids_ = new int[keys.length * 2];
+        Arrays.fill(keys_, EMPTY);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY) continue;
+            int s = slot(keys[i]);
+            keys_[s] = keys[i];
+            ids_[s] = ids[i];
+        }
+    }
+
+    private void index(int id, long mac, String name) {
+        if (id >= macs_.length) {
+            int n = Math.max(macs_.length * 2, id + 1);
+            macs_ = Arrays.copyOf(macs_, n);
+            names_ = Arrays.copyOf(names_, n);
+        }
+        macs_[id] = mac;
+        names_[id] = name;
+    }
+
+    // Adds a persisted entry. An ID already taken gets a fresh one, which is written back so that
+    // the armband keeps it.
+    public synchronized void load(long mac, int id, String name) {
+        if (keys_[slot(mac)] == mac) return;
+        if (id > 0 && !used_.get(id)) {
+            insert(mac, id, name);
+            return;
+        }
+        id = used_.nextClearBit(1);
+        insert(mac, id, name);
+        store_.save(mac, id, name);
+    }
+
+    private void insert(long mac, int id, String name) {
+        if (2 * (size_ + 1) > keys_.length) grow();
+        int s = slot(mac);
+        keys_[s] = mac;
+        ids_[s] = id;
+        size_++;
+        known_.set(id);
+        used_.set(id);
+        index(id, mac, name);
+    }
+
+    // ID of a known armband, -1 if unknown
+    public synchronized int idOf(long mac) {
+        int s = slot(mac);
+        return keys_[s] == mac ? ids_[s] : -1;
+    }
+
+    // ID of the armband, a new entry with the lowest free ID if it is unknown
+    public synchronized int register(long mac, String name) {
+        int s = slot(mac);
+        if (keys_[s] == mac) {
+            int id = ids_[s];
+            if (name != null && !name.equals(names_[id])) {
+                names_[id] = name;
+                store_.save(mac, id, name);
+            }
+            return id;
+        }
+        int id = used_.nextClearBit(1);
+        insert(mac, id, name);
+        store_.save(mac, id, name);
+        return id;
+    }
+
+    public synchronized void remove(long mac) {
+        int s = slot(mac);
+        if (keys_[s] != mac) return;
+        int id = ids_[s];
+        known_.clear(id);
+        used_.clear(id);
+        macs_[id] = 0;
+        names_[id] = null;
+        size_--;
+
+        // Backward-shift deletion keeps the probe sequences intact without tombstones
+        int mask = keys_.length - 1;
+        int hole = s;
+        for (int i = (s + 1) & mask; keys_[i] != EMPTY; i = (i + 1) & mask) {
+            int home = home(keys_[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys_[hole] = keys_[i];
+                ids_[hole] = ids_[i];
+                hole = i;
+            }
+        }
+        keys_[hole] = EMPTY;
+
+        store_.delete(mac);
+    }
+
+    // Lowest free ID for an armband that is not to be remembered, such as a replayed one
+    public synchronized int acquireTransient() {
+        int id = used_.nextClearBit(1);
+        used_.set(id);
+        return id;
+    }
+
+    public synchronized void releaseTransient(int id) {
+        if (id > 0 && !known_.get(id)) used_.clear(id);
+    }
+
+    // Writes the pending changes, the registry must not be changed afterwards
+    public synchronized void close() {
+        store_.close();
+    }
+
+    public synchronized int size() {
+        return size_;
+    }
+
+    // Known MACs in ID order
+    public synchronized List<String> macs() {
+        List<String> list = new ArrayList<>(size_);
+        for (int id = known_.nextSetBit(1); id >= 0; id = known_.nextSetBit(id + 1)) {
+            list.add(unpackMac(macs_[id]));
+        }
+        return list;
+    }
+
+    // Known IDs in increasing order
+    public synchronized int[] ids() {
+        int[] ids = new int[size_];
+        int n = 0;
+        for (int id = known_.nextSetBit(1); id >= 0; id = known_.nextSetBit(id + 1)) {
+            ids[n++] = id;
+        }
+        return ids;
+    }
+
+    public synchronized long getMac(int id) {
+        return id < macs_.length ? macs_[id] : 0;
+    }
+
+    public synchronized String getName(int id) {
+        return id < names_.length ? names_[id] : null;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists a {@link MyoRegistry} in the shared preferences, one "myo.<MAC>" = "<id>,<name>" key
+ * per armband. Writes are committed in order on a single background thread, so neither the Hub
+ * thread nor the main thread ever waits for the disk.
+ *
+ * The former "myos" key, a JSON map of all armbands, is migrated on the first open.
+ */
+class MyoRegistryPreferences implements MyoRegistry.Store {
+    private static final String TAG = "MyoRegistry";
+    public static final String PREFIX = "myo.";
+    private static final String LEGACY_KEY = "myos";
+    // How long close() waits for the pending writes
+    private static final long CLOSE_TIMEOUT_MS = 2000;
+
+    private final SharedPreferences prefs_;
+    private final ExecutorService writer_ = Executors.newSingleThreadExecutor();
+
+    private MyoRegistryPreferences(SharedPreferences prefs) {
+        prefs_ = prefs;
+    }
+
+    // The registry stored in prefs, written back on every change
+    public static MyoRegistry open(SharedPreferences prefs) {
+        MyoRegistryPreferences store = new MyoRegistryPreferences(prefs);
+        MyoRegistry registry = new MyoRegistry(store);
+        if (read(prefs, registry)) {
+            for (int id : registry.ids()) {
+                store.save(registry.getMac(id), id, registry.getName(id));
+            }
+            store.write(() -> prefs.edit().remove(LEGACY_KEY).commit());
+            Log.i(TAG, "Migrated " + registry.size() + " armbands to per-armband preferences");
+        }
+        return registry;
+    }
+
+    // A copy of the registry stored in prefs, changes to it are not persisted
+    public static MyoRegistry readOnly(SharedPreferences prefs) {
+        MyoRegistry registry = new MyoRegistry(MyoRegistry.NO_STORE);
+        read(prefs, registry);
+        return registry;
+    }
+
+    public static boolean isEntry(String key) {
+        return key != null && key.startsWith(PREFIX);
+    }
+
+    // Returns true if entries were taken from the legacy key
+    private static boolean read(SharedPreferences prefs, MyoRegistry registry) {
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            if (!isEntry(e.getKey()) || !(e.getValue() instanceof String)) continue;
+            String value = (String) e.getValue();
+            int comma = value.indexOf(',');
+            try {
+                long mac = MyoRegistry.packMac(e.getKey().substring(PREFIX.length()));
+                registry.load(mac, Integer.parseInt(value.substring(0, Math.max(comma, 0))), value.substring(comma + 1));
+            } catch (IllegalArgumentException ex) {
+                Log.w(TAG, "Ignoring malformed entry " + e.getKey() + " = " + value);
+            }
+        }
+
+        String legacy = prefs.getString(LEGACY_KEY, "");
+        if (legacy.isEmpty()) return false;
+        try {
+            Type type = new TypeToken<HashMap<String, MyoProperties>>(){}.getType();
+            Map<String, MyoProperties> settings = new Gson().fromJson(legacy, type);
+            if (settings == null) return false;
+            for (Map.Entry<String, MyoProperties> e : settings.entrySet()) {
+                registry.load(MyoRegistry.packMac(e.getKey()), e.getValue().getId(), e.getValue().getName());
+            }
+        } catch (JsonSyntaxException | IllegalArgumentException ex) {
+            Log.w(TAG, "Ignoring malformed " + LEGACY_KEY + " preference", ex);
+        }
+        return true;
+    }
+
+    private static String key(long mac) {
+        return PREFIX + MyoRegistry.unpackMac(mac);
+    }
+
+    @Override
+    public void save(long mac, int id, String name) {
+        String key = key(mac);
+        String value = id + "," + (name != null ? name : "");
+        write(() -> prefs_.edit().putString(key, value).commit());
+    }
+
+    @Override
+    public void delete(long mac) {
+        String key = key(mac);
+        write(() -> prefs_.edit().remove(key).commit());
+    }
+
+    @Override
+    public void close() {
+        writer_.shutdown();
+        try {
+            if (!writer_.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Armband preferences still being written after " + CLOSE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Runnable commit) {
+        try {
+            writer_.execute(commit);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Registry closed, change not saved");
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.hardware.SensorManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.thalmic.myo.AbstractDeviceListener;
+import com.thalmic.myo.Arm;
+import com.thalmic.myo.DeviceListener;
+import com.thalmic.myo.Hub;
+import com.thalmic.myo.Myo;
+import com.thalmic.myo.Pose;
+import com.thalmic.myo.Quaternion;
+import com.thalmic.myo.Vector3;
+import com.thalmic.myo.XDirection;
+
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Foreground service owning the data plane: the Hub listener, the armband nodes, the phone IMU,
+ * /tf, diagnostics, reconnects, recording and replay. It keeps streaming while the Activity is in
+ * the background, the screen is off or the Activity is recreated; the Activity binds to it only
+ * to hand over the ROS executor and to show the attached armbands.
+ */
+public class MyoService extends Service {
+    private static final String TAG = "MyoService";
+    private static final int NOTIFICATION_ID = 1;
+
+    public class LocalBinder extends Binder {
+        public MyoService getService() {
+            return MyoService.this;
+        }
+    }
+
+    // Called on the main thread
+    public interface Listener {
+        void onDevicesChanged(List<String> devices);
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // We store each Myo object that we attach to in this list, so that we can keep track of the order we've seen
+    // each Myo and give it a unique short identifier (see onAttach() and identifyMyo() below).
+    private final MyoDispatchTable mDevices = new MyoDispatchTable();
+    // Known armbands and their IDs, persisted per armband
+    private MyoRegistry mRegistry;
+    private boolean mHubReady = false;
+    private boolean mStarted = false;
+
+    // ROS stuff
+    private NodeMainExecutor mNodeExecutor;
+    private NodeConfiguration mNodeConfiguration;
+
+    private SharedPreferences mPrefs;
+    private SensorManager mSensorManager;
+    private ImuPublisher imu_pub;
+    private TfBroadcaster mTfBroadcaster;
+    private DiagnosticsPublisher mDiagnostics;
+    // Hosts all armbands in one ROS node when the single_node preference is set, null otherwise
+    private MyoHostNode mHost;
+    // Publishes all armbands aligned in one message when the publish_bundle preference is set, null otherwise
+    private MyoSynchronizer mSync;
+    private PowerManager.WakeLock wakeLock;
+    private ReconnectScheduler mReconnect;
+
+    // Capture of all Hub events, enabled by the record_events preference
+    private HubEventRecorder mRecorder;
+    // Replay of a capture instead of real armbands, enabled by the replay_file preference
+    private HubEventPlayer mPlayer;
+    private final List<MyoNode> mReplayNodes = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        // Used by the reconnect task while the Hub thread adds and removes Myos
+        mRegistry = MyoRegistryPreferences.open(mPrefs);
+
+        // First, we initialize the Hub singleton with an application identifier.
+        Hub hub = Hub.getInstance();
+        mHubReady = hub.init(this, getPackageName());
+        if (!mHubReady) {
+            // We can't do anything with the Myo device if the Hub can't be initialized
+            Log.e(TAG, "Couldn't initialize Hub");
+            return;
+        }
+        hub.setMyoAttachAllowance(99);
+
+        mReconnect = new ReconnectScheduler(mac -> Hub.getInstance().attachByMacAddress(mac));
+
+        mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getPackageName());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    private Notification buildNotification() {
+        PendingIntent content = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        int count = mDevices.size() + mReplayNodes.size();
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(mStarted ? "Streaming " + count + " Myo" + (count == 1 ? "" : "s") : "Waiting for the ROS master")
+                .setContentIntent(content)
+                .setOngoing(true)
+                .build();
+    }
+
+    public boolean isHubReady() {
+        return mHubReady;
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    // Starts the nodes on the executor, once. Returns true if there are no known armbands to
+    // reconnect to, the caller should then offer a scan.
+    public synchronized boolean start(NodeMainExecutor nodeMainExecutor, NodeConfiguration configuration) {
+        if (mStarted || !mHubReady) return false;
+        mStarted = true;
+
+        mNodeConfiguration = configuration;
+        mNodeExecutor = nodeMainExecutor;
+
+        mTfBroadcaster = new TfBroadcaster();
+        mNodeExecutor.execute(mTfBroadcaster, mNodeConfiguration);
+
+        mDiagnostics = new DiagnosticsPublisher();
+        mNodeExecutor.execute(mDiagnostics, mNodeConfiguration);
+        mDiagnostics.register(mTfBroadcaster);
+        mDiagnostics.register(mReconnect);
+
+        if (mPrefs.getBoolean("single_node", false)) {
+            mHost = new MyoHostNode();
+            mNodeExecutor.execute(mHost, mNodeConfiguration);
+        }
+
+        if (mPrefs.getBoolean("publish_bundle", false)) {
+            mSync = new MyoSynchronizer();
+            mNodeExecutor.execute(mSync, mNodeConfiguration);
+            mDiagnostics.register(mSync);
+        }
+
+        imu_pub = new ImuPublisher(mSensorManager, mTfBroadcaster);
+        mNodeExecutor.execute(imu_pub, mNodeConfiguration);
+        mDiagnostics.register(imu_pub);
+        devicesChanged();
+
+        String replay_file = mPrefs.getString("replay_file", "");
+        if (!replay_file.isEmpty()) {
+            startReplay(new File(replay_file), Double.parseDouble(mPrefs.getString("replay_speed", "1")));
+            return false;
+        }
+
+        if (mPrefs.getBoolean("record_events", false)) {
+            File file = new File(getExternalFilesDir(null), "myo-" + System.currentTimeMillis() + ".evt");
+            try {
+                mRecorder = new HubEventRecorder(file);
+                Hub.getInstance().addListener(mRecorder);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot record Hub events to " + file, e);
+            }
+        }
+
+        // Next, register for DeviceListener callbacks.
+        Hub.getInstance().addListener(mListener);
+
+        if (mRegistry.size() != 0) {
+            mReconnect.start(mRegistry.macs());
+            return false;
+        }
+        return true;
+    }
+
+    // Stops streaming and the service, the Hub disconnects from the Myos
+    public void stop() {
+        stopForeground(true);
+        stopSelf();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mHubReady) {
+            // We don't want any callbacks when the service is gone, so unregister the listener.
+            Hub.getInstance().removeListener(mListener);
+            mReconnect.shutdown();
+            if (mRecorder != null) {
+                Hub.getInstance().removeListener(mRecorder);
+                mRecorder.close();
+            }
+            if (mPlayer != null) {
+                mPlayer.stop();
+            }
+            shutdownNodes();
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            // This will disconnect from the Myo.
+            Hub.getInstance().shutdown();
+        }
+        // Nothing changes the registry any more, write out what is still pending
+        mRegistry.close();
+    }
+
+    // Shuts down every node start() launched, the armbands before the nodes they use. Hosted
+    // armbands are stopped by the host.
+    private synchronized void shutdownNodes() {
+        if (!mStarted) return;
+        mStarted = false;
+
+        if (mHost != null) {
+            mNodeExecutor.shutdownNodeMain(mHost);
+        } else {
+            for (MyoNode node : mDevices.nodes()) {
+                mNodeExecutor.shutdownNodeMain(node);
+            }
+            for (MyoNode node : mReplayNodes) {
+                mNodeExecutor.shutdownNodeMain(node);
+            }
+        }
+        if (mSync != null) {
+            mNodeExecutor.shutdownNodeMain(mSync);
+        }
+        mNodeExecutor.shutdownNodeMain(imu_pub);
+        mNodeExecutor.shutdownNodeMain(mDiagnostics);
+        mNodeExecutor.shutdownNodeMain(mTfBroadcaster);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        listener.onDevicesChanged(getDevices());
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    // Name and MAC of every streaming armband
+    public List<String> getDevices() {
+        List<String> list = new ArrayList<>();
+        for (Myo m : mDevices.myos()) {
+            list.add(m.getName() + " [" + m.getMacAddress() + "]");
+        }
+        for (MyoNode n : mReplayNodes) {
+            list.add("Replay of Myo " + n.getMyoID() + " [" + n.getMacAddress() + "]");
+        }
+        return list;
+    }
+
+    // Display work is posted to the main thread, never done in the Hub callback itself
+    private void devicesChanged() {
+        mMainHandler.post(() -> {
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID, buildNotification());
+            List<String> devices = getDevices();
+            for (Listener l : mListeners) {
+                l.onDevicesChanged(devices);
+            }
+        });
+    }
+
+    // Returns unique integer ID for Myo. If the Myo known already, takes it ID from persistent
+    // storage. Otherwise, it gets the lowest available one.
+    private int identifyMyo(Myo myo) {
+        int id = mRegistry.register(MyoRegistry.packMac(myo.getMacAddress()), myo.getName());
+        Log.d(TAG, myo.getName() + " [" + myo.getMacAddress() + "] known as Myo " + Integer.toString(id));
+        return id;
+    }
+
+    private MyoNode addMyo(Myo myo, long timestamp) {
+        int id = identifyMyo(myo);
+
+        MyoNode node = new MyoNode(myo, id, timestamp, mTfBroadcaster, mNodeConfiguration.getTimeProvider());
+        if (!mDevices.add(myo, node)) return null;
+        // Acquire wake lock
+        wakeLock.acquire();
+        mDiagnostics.register(node);
+
+        return node;
+    }
+
+    // Starts publishing an armband, in the host node or as a node of its own
+    private void startNode(MyoNode node) {
+        if (mSync != null) {
+            mSync.add(node);
+        }
+        if (mHost != null) {
+            mHost.add(node);
+        } else {
+            mNodeExecutor.execute(node, mNodeConfiguration);
+        }
+    }
+
+    private void stopNode(MyoNode node) {
+        if (mSync != null) {
+            mSync.remove(node);
+        }
+        if (mHost != null) {
+            mHost.remove(node);
+        } else {
+            mNodeExecutor.shutdownNodeMain(node);
+        }
+    }
+
+    private void removeMyo(Myo myo) {
+        MyoNode node = mDevices.remove(myo);
+        if (node != null) {
+            mDiagnostics.unregister(node);
+            stopNode(node);
+            mRegistry.remove(MyoRegistry.packMac(myo.getMacAddress()));
+
+            // Release wake lock
+            wakeLock.release();
+            devicesChanged();
+        }
+    }
+
+    // Replayed armbands get nodes without a Myo object, nothing about them is persisted
+    private void startReplay(File file, double speed) {
+        MyoEventDispatcher dispatcher = new MyoEventDispatcher(new MyoEventDispatcher.Nodes() {
+            @Override
+            public MyoNode attach(String mac, String name, long timestamp) {
+                // A replayed armband keeps the ID it has been given before, or borrows a free one
+                int id = mRegistry.idOf(MyoRegistry.packMac(mac));
+                if (id < 0) id = mRegistry.acquireTransient();
+                MyoNode node = new MyoNode(null, mac, id, timestamp,
+                        mTfBroadcaster, mNodeConfiguration.getTimeProvider());
+                mReplayNodes.add(node);
+                mDiagnostics.register(node);
+                startNode(node);
+                devicesChanged();
+                return node;
+            }
+
+            @Override
+            public void detach(MyoNode node) {
+                mReplayNodes.remove(node);
+                mRegistry.releaseTransient(node.getMyoID());
+                mDiagnostics.unregister(node);
+                stopNode(node);
+                devicesChanged();
+            }
+        });
+
+        Log.i(TAG, "Replaying " + file + " at " + (speed > 0 ? speed + "x" : "max") + " speed");
+        // Replayed armbands leave with the end of the capture, releasing their topics and IDs
+        mPlayer = new HubEventPlayer(file, dispatcher, speed, dispatcher::detachAll);
+        mPlayer.start();
+    }
+
+    // Classes that inherit from AbstractDeviceListener can be used to receive events from Myo devices.
+    // If you do not override an event, the default behavior is to do nothing.
+    private DeviceListener mListener = new AbstractDeviceListener() {
+        // Every time the SDK successfully attaches to a Myo armband, this function will be called.
+        //
+        // You can rely on the following rules:
+        //  - onAttach() will only be called once for each Myo device
+        //  - no other events will occur involving a given Myo device before onAttach() is called with it
+        //
+        // If you need to do some kind of per-Myo preparation before handling events, you can safely do it in onAttach().
+        @Override
+        public void onAttach(Myo myo, long timestamp) {
+            // The object for a Myo is unique - in other words, it's safe to compare two Myo references to
+            // see if they're referring to the same Myo.
+            mReconnect.onAttached(myo.getMacAddress());
+            if (mDevices.contains(myo)) return;
+
+            MyoNode nodeMain = addMyo(myo, timestamp);
+            if (nodeMain == null) return;
+
+            // Node startup runs on the executor or the host's loop, events arriving meanwhile are buffered by the node
+            startNode(nodeMain);
+
+            Log.i(TAG, "Attached to " + myo.getName() + " [" + myo.getMacAddress() + "], now known as Myo " + nodeMain.getMyoID() + ".");
+            devicesChanged();
+        }
+
+        @Override
+        public void onDetach(Myo myo, long timestamp) {
+            mReconnect.remove(myo.getMacAddress());
+            removeMyo(myo);
+        }
+
+        // onArmSync() is called whenever Myo has recognized a Sync Gesture after someone has put it on their
+        // arm. This lets Myo know which arm it's on and which way it's facing.
+        @Override
+        public void onArmSync(Myo myo, long timestamp, Arm arm, XDirection xDirection) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onArmSync(timestamp, arm.ordinal(), xDirection.ordinal());
+        }
+        // onArmUnsync() is called whenever Myo has detected that it was moved from a stable position on a person's arm after
+        // it recognized the arm. Typically this happens when someone takes Myo off of their arm, but it can also happen
+        // when Myo is moved around on the arm.
+        @Override
+        public void onArmUnsync(Myo myo, long timestamp) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onArmUnsync(timestamp, Arm.UNKNOWN.ordinal(), XDirection.UNKNOWN.ordinal());
+        }
+        // onUnlock() is called whenever a synced Myo has been unlocked. Under the standard locking
+        // policy, that means poses will now be delivered to the listener.
+        @Override
+        public void onUnlock(Myo myo, long timestamp) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onUnlock(timestamp);
+        }
+        // onLock() is called whenever a synced Myo has been locked. Under the standard locking
+        // policy, that means poses will no longer be delivered to the listener.
+        @Override
+        public void onLock(Myo myo, long timestamp) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onLock(timestamp);
+        }
+
+        // onOrientationData() is called whenever a Myo provides its current orientation,
+        // represented as a quaternion.
+        @Override
+        public void onOrientationData(Myo myo, long timestamp, Quaternion rotation) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            // Normalized by the node, rotation.normalized() would allocate a new quaternion per sample
+            nodeMain.onOrientationData(timestamp, rotation.x(), rotation.y(), rotation.z(), rotation.w());
+        }
+        // onPose() is called whenever a Myo provides a new pose.
+        @Override
+        public void onPose(Myo myo, long timestamp, Pose pose) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onPose(timestamp, pose.ordinal());
+        }
+
+        @Override
+        public void onGyroscopeData(Myo myo, long timestamp, Vector3 gyro) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onGyroscopeData(timestamp, gyro.x(), gyro.y(), gyro.z());
+        }
+
+        @Override
+        public void onAccelerometerData(Myo myo, long timestamp, Vector3 accel) {
+            MyoNode nodeMain = mDevices.get(myo);
+            if (nodeMain == null) return;
+
+            nodeMain.onAccelerometerData(timestamp, accel.x(), accel.y(), accel.z());
+        }
+    };
+}
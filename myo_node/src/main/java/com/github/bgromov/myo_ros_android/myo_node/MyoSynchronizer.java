@@ -0,0 +1,267 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.parameter.ParameterTree;
+import org.ros.node.topic.Publisher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import diagnostic_msgs.DiagnosticStatus;
+import geometry_msgs.Transform;
+import geometry_msgs.Twist;
+import geometry_msgs.Wrench;
+import sensor_msgs.MultiDOFJointState;
+
+/**
+ * Publishes the IMU state of all armbands, aligned on a common time grid, as one
+ * sensor_msgs/MultiDOFJointState per tick on /idsia/myo/bundle.
+ *
+ * Joint "myoN" carries armband N: the orientation as the rotation of its transform, the angular
+ * velocity [rad/s] as the angular part of its twist and the specific force [m/s^2] as the force of
+ * its wrench. Parts an armband has no sample for within the slop are NaN; armbands with none at
+ * all are left out of the tick. Every hosted MyoNode hands its synced samples over through a
+ * SampleRing of its own; the alignment is done by {@link BundleAligner} on this node's thread.
+ *
+ * Parameters under /idsia/sync: rate_hz (50), slop_ms (15) and max_latency_ms (50).
+ */
+public class MyoSynchronizer extends AbstractNodeMain implements DiagnosticsPublisher.Source {
+    private static final String TAG = "MyoSynchronizer";
+    private static final int DRAIN_BATCH = 64;
+
+    private final class Member implements SampleRing.Consumer {
+        final MyoNode node;
+        final SampleRing ring = new SampleRing(256);
+        BundleAligner.Track track;
+
+        Member(MyoNode node) {
+            this.node = node;
+        }
+
+        // The ring's arrival time carries the sample's ROS stamp
+        @Override
+        public void onSample(int kind, long timestamp, long stamp, double a, double b, double c, double d) {
+            aligner_.add(track, kind, stamp, a, b, c, d);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<MyoNode> joined_ = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<MyoNode> left_ = new ConcurrentLinkedQueue<>();
+    // Loop thread only
+    private final List<Member> members_ = new ArrayList<>();
+
+    private ConnectedNode node_;
+    private volatile Thread loop_thread_;
+    private volatile boolean disabled_ = false;
+    private volatile BundleAligner aligner_;
+    private Publisher<MultiDOFJointState> pub_bundle_;
+    private MessagePool<MultiDOFJointState> pool_bundle_;
+    private MessageFactory factory_;
+    private String[] names_ = new String[16];
+
+    private double rate_hz_ = 50;
+    private long slop_ms_ = 15;
+    private long max_latency_ms_ = 50;
+
+    // Previously reported values, diagnostics thread only
+    private long reported_bundles_ = 0;
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("myo_ros_android/myo_sync");
+    }
+
+    // Starts aligning an armband's samples, from any thread
+    public void add(MyoNode node) {
+        if (disabled_) return;
+        joined_.add(node);
+        wake();
+    }
+
+    public void remove(MyoNode node) {
+        left_.add(node);
+        wake();
+    }
+
+    private void wake() {
+        Thread t = loop_thread_;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        node_ = connectedNode;
+        factory_ = node_.getTopicMessageFactory();
+
+        ParameterTree params = node_.getParameterTree();
+        rate_hz_ = params.getDouble("/idsia/sync/rate_hz", rate_hz_);
+        slop_ms_ = params.getInteger("/idsia/sync/slop_ms", (int) slop_ms_);
+        max_latency_ms_ = params.getInteger("/idsia/sync/max_latency_ms", (int) max_latency_ms_);
+        if (rate_hz_ <= 0) {
+            disabled_ = true;
+            joined_.clear();
+            Log.w(TAG, "Not aligning armbands, /idsia/sync/rate_hz is " + rate_hz_);
+            return;
+        }
+
+        pub_bundle_ = node_.newPublisher("/idsia/myo/bundle", MultiDOFJointState._TYPE);
+        pool_bundle_ = new MessagePool<>(pub_bundle_, msg -> msg.getHeader().setFrameId("/world"));
+        aligner_ = new BundleAligner((long) (1e9 / rate_hz_), TimeUnit.MILLISECONDS.toNanos(slop_ms_),
+                TimeUnit.MILLISECONDS.toNanos(max_latency_ms_), this::publishBundle);
+        Log.i(TAG, "Aligning armbands at " + rate_hz_ + " Hz, slop " + slop_ms_ + " ms, max latency " + max_latency_ms_ + " ms");
+
+        node_.executeCancellableLoop(new CancellableLoop() {
+            @Override
+            protected void setup() {
+                loop_thread_ = Thread.currentThread();
+            }
+
+            @Override
+            protected void loop() throws InterruptedException {
+                update();
+
+                for (int i = 0; i < members_.size(); i++) {
+                    Member m = members_.get(i);
+                    m.ring.drain(m, DRAIN_BATCH);
+                }
+
+                long now = node_.getCurrentTime().totalNsecs();
+                aligner_.advance(now);
+
+                long timeout_ns = aligner_.timeUntilDeadline(now);
+                if (timeout_ns < 0) timeout_ns = TimeUnit.MILLISECONDS.toNanos(100);
+                if (left_.isEmpty() && allEmpty()) {
+                    // Every member's ring wakes this thread when a sample is offered
+                    LockSupport.parkNanos(this, Math.max(timeout_ns, 1));
+                }
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        });
+    }
+
+    private boolean allEmpty() {
+        for (int i = 0; i < members_.size(); i++) {
+            if (!members_.get(i).ring.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    // Applies the pending joins and leaves, on the loop thread
+    private void update() {
+        MyoNode node;
+        List<MyoNode> starting = null;
+        while ((node = joined_.poll()) != null) {
+            if (node.getState() == MyoNode.STATE_ATTACHED) {
+                // Its final ID is only known once it has read the static IDs, try again later
+                if (starting == null) starting = new ArrayList<>();
+                starting.add(node);
+                continue;
+            }
+            Member m = new Member(node);
+            m.track = aligner_.join(node.getMyoID());
+            m.ring.setWaiter(loop_thread_);
+            node.setSyncRing(m.ring);
+            members_.add(m);
+            Log.i(TAG, "Myo " + node.getMyoID() + " joined, " + members_.size() + " armbands");
+        }
+        if (starting != null) joined_.addAll(starting);
+        while ((node = left_.poll()) != null) {
+            joined_.remove(node);
+            for (int i = 0; i < members_.size(); i++) {
+                Member m = members_.get(i);
+                if (m.node != node) continue;
+                node.setSyncRing(null);
+                aligner_.leave(m.track);
+                members_.remove(i);
+                Log.i(TAG, "Myo " + node.getMyoID() + " left, " + members_.size() + " armbands");
+                break;
+            }
+        }
+    }
+
+    private String jointName(int id) {
+        if (id >= names_.length) names_ = Arrays.copyOf(names_, Math.max(2 * names_.length, id + 1));
+        if (names_[id] == null) names_[id] = "myo" + id;
+        return names_[id];
+    }
+
+    // Elements are reused from one tick to the next and only created when armbands join
+    private void publishBundle(long tick, int count, int[] ids, int[] parts, double[][] values) {
+        MultiDOFJointState msg = pool_bundle_.next();
+        RosTime.setNanos(msg.getHeader().getStamp(), tick);
+
+        List<String> names = msg.getJointNames();
+        List<Transform> transforms = msg.getTransforms();
+        List<Twist> twists = msg.getTwists();
+        List<Wrench> wrenches = msg.getWrenches();
+        while (transforms.size() < count) {
+            names.add("");
+            transforms.add(factory_.<Transform>newFromType(Transform._TYPE));
+            twists.add(factory_.<Twist>newFromType(Twist._TYPE));
+            wrenches.add(factory_.<Wrench>newFromType(Wrench._TYPE));
+        }
+        while (transforms.size() > count) {
+            int last = transforms.size() - 1;
+            names.remove(last);
+            transforms.remove(last);
+            twists.remove(last);
+            wrenches.remove(last);
+        }
+
+        for (int i = 0; i < count; i++) {
+            double[] v = values[i];
+            names.set(i, jointName(ids[i]));
+
+            boolean orientation = (parts[i] & (1 << BundleAligner.ORIENTATION)) != 0;
+            geometry_msgs.Quaternion q = transforms.get(i).getRotation();
+            q.setX(orientation ? v[0] : Double.NaN);
+            q.setY(orientation ? v[1] : Double.NaN);
+            q.setZ(orientation ? v[2] : Double.NaN);
+            q.setW(orientation ? v[3] : Double.NaN);
+
+            boolean gyro = (parts[i] & (1 << BundleAligner.GYRO)) != 0;
+            geometry_msgs.Vector3 w = twists.get(i).getAngular();
+            w.setX(gyro ? v[4] * MyoNode.DEG_TO_RAD : Double.NaN);
+            w.setY(gyro ? v[5] * MyoNode.DEG_TO_RAD : Double.NaN);
+            w.setZ(gyro ? v[6] * MyoNode.DEG_TO_RAD : Double.NaN);
+
+            boolean accel = (parts[i] & (1 << BundleAligner.ACCEL)) != 0;
+            geometry_msgs.Vector3 f = wrenches.get(i).getForce();
+            f.setX(accel ? v[7] * MyoNode.STANDARD_GRAVITY : Double.NaN);
+            f.setY(accel ? v[8] * MyoNode.STANDARD_GRAVITY : Double.NaN);
+            f.setZ(accel ? v[9] * MyoNode.STANDARD_GRAVITY : Double.NaN);
+        }
+
+        pub_bundle_.publish(msg);
+    }
+
+    @Override
+    public void report(DiagnosticsPublisher.Report r) {
+        r.setName("/idsia/myo/bundle", "");
+        BundleAligner aligner = aligner_;
+        if (aligner == null) {
+            r.add("state", "disabled");
+            return;
+        }
+
+        long bundles = aligner.getBundles();
+        r.add("armbands", aligner.getTracks());
+        r.add("rate_hz", r.rate(bundles, reported_bundles_));
+        r.add("partial_total", aligner.getPartial());
+        r.add("skipped_total", aligner.getSkipped());
+        if (aligner.getSkipped() > 0) {
+            r.level(DiagnosticStatus.WARN, "Fell behind and skipped ticks");
+        }
+        reported_bundles_ = bundles;
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.ros.node.topic.Publisher;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks into a rosjava publisher's outgoing side, which Publisher does not expose.
+ *
+ * rosjava's DefaultPublisher queues messages in an OutgoingMessageQueue, whose writer thread
+ * takes them off a CircularBlockingDeque and writes them to the Netty channels of all
+ * subscribers. Netty buffers whatever a channel can't send right away; past the write buffer high
+ * water mark the channel reports itself as not writable. Both are found by type through
+ * reflection, so a publisher that isn't a DefaultPublisher (or another rosjava layout) yields no
+ * probe rather than a wrong one.
+ *
+ * isCongested() walks the channels at most every CHECK_PERIOD_NS, on the publish loop.
+ */
+class OutgoingProbe implements PublishGate.Outgoing {
+    private static final long CHECK_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(2);
+    // Publisher -> OutgoingMessageQueue -> channel group and deque
+    private static final int SEARCH_DEPTH = 2;
+
+    private final ChannelGroup channels_;
+    private final Object deque_;
+    private final Field deque_length_;
+
+    // Publish loop only
+    private long next_check_ns_ = Long.MIN_VALUE;
+    private boolean congested_ = false;
+
+    private OutgoingProbe(ChannelGroup channels, Object deque, Field deque_length) {
+        channels_ = channels;
+        deque_ = deque;
+        deque_length_ = deque_length;
+    }
+
+    // Returns null if the publisher's channels can't be found
+    public static OutgoingProbe of(Publisher<?> publisher) {
+        Object[] found = new Object[2];
+        search(publisher, SEARCH_DEPTH, found);
+        if (found[0] == null) return null;
+
+        Field length = null;
+        if (found[1] != null) {
+            try {
+                length = found[1].getClass().getDeclaredField("length");
+                length.setAccessible(true);
+                if (length.getType() != int.class) length = null;
+            } catch (NoSuchFieldException | RuntimeException e) {
+                // Reflection refused, e.g. by a security manager
+                length = null;
+            }
+        }
+        return new OutgoingProbe((ChannelGroup) found[0], length != null ? found[1] : null, length);
+    }
+
+    // Fills found[0] with the first channel group and found[1] with the first deque below o
+    private static void search(Object o, int depth, Object[] found) {
+        for (Class<?> c = o.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive()) continue;
+
+                Object v;
+                try {
+                    f.setAccessible(true);
+                    v = f.get(o);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    continue;
+                }
+                if (v == null) continue;
+
+                if (v instanceof ChannelGroup) {
+                    if (found[0] == null) found[0] = v;
+                } else if (v.getClass().getSimpleName().equals("CircularBlockingDeque")) {
+                    if (found[1] == null) found[1] = v;
+                } else if (depth > 1 && v.getClass().getName().startsWith("org.ros.internal.")) {
+                    search(v, depth - 1, found);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isCongested() {
+        long now = System.nanoTime();
+        if (now >= next_check_ns_) {
+            next_check_ns_ = now + CHECK_PERIOD_NS;
+            boolean congested = false;
+            for (Channel channel : channels_) {
+                if (!channel.isWritable()) {
+                    congested = true;
+                    break;
+                }
+            }
+            congested_ = congested;
+        }
+        return congested_;
+    }
+
+    @Override
+    public int depth() {
+        if (deque_length_ == null) return -1;
+        try {
+            return deque_length_.getInt(deque_);
+        } catch (IllegalAccessException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * The phone side of ImuPublisher without the Android framework: accelerometer, gyroscope and
+ * rotation vector events in, ROS-stamped rotations and merged IMU samples out.
+ *
+ * Events are merged on their sensor event time (see {@link SensorMerger}) and stamped through a
+ * {@link SensorClockMapper} that reads both clocks at most every CLOCK_READ_PERIOD_NS. Stamps
+ * follow the event times, not the delivery, so the bursts of batching sensors come out in order
+ * and evenly spaced. Sensor thread only, nothing is allocated per event.
+ */
+class PhoneImuMerger implements SensorMerger.Sink {
+    public interface Clock {
+        // The clock of SensorEvent.timestamp, elapsedRealtimeNanos() on Android
+        long sensorNanos();
+
+        long rosNanos();
+    }
+
+    public interface Sink {
+        // Normalized rotation x, y, z, w of the rotation vector event at event_ns
+        void onRotation(long event_ns, long stamp_ns, double x, double y, double z, double w);
+
+        // present is a mask of (1 << SensorMerger stream), see SensorMerger.Sink
+        void onImu(long stamp_ns, int present, double[] accel, double[] gyro, double[] rotation);
+    }
+
+    // How long the merged IMU output waits for a lagging sensor before using its closest sample
+    public static final long MERGE_MAX_DELAY_NS = 50000000L;
+    private static final long CLOCK_READ_PERIOD_NS = 100000000L;
+
+    private final Clock clock_;
+    private final Sink sink_;
+    private final SensorMerger merger_;
+    private final SensorClockMapper clock_mapper_;
+    private long next_clock_read_ns_ = 0;
+
+    // batch_latency_ms is the hardware FIFO latency the sensors were registered with, 0 for none
+    public PhoneImuMerger(int batch_latency_ms, boolean has_accel, boolean has_gyro, boolean has_rotation,
+                          SensorClockMapper clock_mapper, Clock clock, Sink sink) {
+        clock_mapper_ = clock_mapper;
+        clock_ = clock;
+        sink_ = sink;
+
+        // Bursts from batching sensors need room for a whole batch, and time to wait for the other sensors' bursts
+        int capacity = SensorMerger.DEFAULT_CAPACITY;
+        while (capacity < 2 * batch_latency_ms && capacity < 8192) {
+            capacity <<= 1;
+        }
+        long max_delay_ns = Math.max(MERGE_MAX_DELAY_NS, 2000000L * batch_latency_ms);
+        merger_ = new SensorMerger(capacity, max_delay_ns, this);
+        merger_.setEnabled(SensorMerger.ACCEL, has_accel);
+        merger_.setEnabled(SensorMerger.GYRO, has_gyro);
+        merger_.setEnabled(SensorMerger.ROTATION, has_rotation);
+    }
+
+    public void onAccel(long event_ns, double x, double y, double z) {
+        merger_.add(SensorMerger.ACCEL, event_ns, x, y, z, 0);
+    }
+
+    public void onGyro(long event_ns, double x, double y, double z) {
+        merger_.add(SensorMerger.GYRO, event_ns, x, y, z, 0);
+    }
+
+    // Raw TYPE_ROTATION_VECTOR values: x, y, z and, from API 18 on, w
+    public void onRotationVector(long event_ns, float[] values) {
+        // As SensorManager.getQuaternionFromVector()
+        double x = values[0];
+        double y = values[1];
+        double z = values[2];
+        double w;
+        if (values.length >= 4) {
+            w = values[3];
+        } else {
+            w = 1 - x * x - y * y - z * z;
+            w = w > 0 ? Math.sqrt(w) : 0;
+        }
+        double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        w /= norm;
+
+        sink_.onRotation(event_ns, toRos(event_ns), x, y, z, w);
+        merger_.add(SensorMerger.ROTATION, event_ns, x, y, z, w);
+    }
+
+    @Override
+    public void onMerged(long time_ns, int present, double[] accel, double[] gyro, double[] rotation) {
+        sink_.onImu(toRos(time_ns), present, accel, gyro, rotation);
+    }
+
+    // Sensor event time to ROS time, reading both clocks when the last reading is old enough
+    public long toRos(long event_ns) {
+        long before = clock_.sensorNanos();
+        if (before >= next_clock_read_ns_) {
+            long ros = clock_.rosNanos();
+            long after = clock_.sensorNanos();
+            clock_mapper_.update(before, ros, after);
+            next_clock_read_ns_ = after + CLOCK_READ_PERIOD_NS;
+        }
+        return clock_mapper_.toRos(event_ns);
+    }
+
+    public long getMerged() {
+        return merger_.getMerged();
+    }
+
+    public long getLate() {
+        return merger_.getLate();
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Per-topic stage between the publish loop and a publisher, deciding what a backlog turns into.
+ *
+ * Backpressure comes from two places. Publisher.publish() never blocks: rosjava's writer thread
+ * hands every message to Netty, whose per-connection write buffers grow without bound when a
+ * subscriber or the link can't keep up. The {@link Outgoing} probe reports when they are past
+ * their high water mark. The other is the publish loop itself falling behind (stalled, the
+ * sample ring filled up), seen as sample age: ROS time now minus the sample stamp, against
+ * max_age.
+ *
+ * Without either, a sample is handed over right away, after whatever is still staged. Otherwise
+ * PUBLISH_ALL hands it over anyway: nothing is dropped here, the backlog stays in rosjava and
+ * Netty and only shows up as outgoing depth and latency. DROP_OLDEST stages it, keeping the
+ * newest depth samples, and LATEST_ONLY keeps only the newest one. Staged samples are handed
+ * over by {@link #flush()}, called on every publish loop pass, once the outgoing connections
+ * drain, or before the next sample that meets no backpressure. Under congestion the dropping
+ * policies publish fresh samples at a lower rate instead of delayed samples at the full rate.
+ *
+ * Single-threaded, nothing is allocated per sample. Counters are read by the diagnostics thread.
+ */
+class PublishGate {
+    public enum Policy {
+        PUBLISH_ALL,
+        DROP_OLDEST,
+        LATEST_ONLY;
+
+        public static Policy fromString(String s, Policy def) {
+            // Former name of PUBLISH_ALL, which never blocked anything
+            if ("block".equalsIgnoreCase(s)) return PUBLISH_ALL;
+            for (Policy p : values()) {
+                if (p.name().equalsIgnoreCase(s)) return p;
+            }
+            return def;
+        }
+    }
+
+    public interface Clock {
+        // ROS time [ns]
+        long nowNs();
+    }
+
+    // What a publisher has not sent yet
+    public interface Outgoing {
+        // True while a connection of the publisher buffers more than it can send. Publish loop only.
+        boolean isCongested();
+
+        // Messages waiting in the publisher's own queue, -1 if unknown. Any thread.
+        int depth();
+    }
+
+    public static final int DEFAULT_DEPTH = 8;
+    public static final long DEFAULT_MAX_AGE_NS = 100000000L;
+
+    private final Policy policy_;
+    private final Decimator.Sink sink_;
+    private final Clock clock_;
+    private final Outgoing outgoing_;
+    private final long max_age_ns_;
+    private final int capacity_;
+    private final long[] stamp_;
+    private final double[] a_;
+    private final double[] b_;
+    private final double[] c_;
+    private final double[] d_;
+    private int head_ = 0;
+    private volatile int count_ = 0;
+
+    private volatile boolean congested_ = false;
+    private volatile long stale_ = 0;
+    private volatile long dropped_ = 0;
+    // Handed over by PUBLISH_ALL while the outgoing connections were congested
+    private volatile long congested_out_ = 0;
+    // Age of the last sample and the oldest ever [ns]
+    private volatile long age_ns_ = 0;
+    private volatile long max_seen_age_ns_ = 0;
+
+    // outgoing is null if the publisher's connections can't be seen, then only sample age counts
+    public PublishGate(Policy policy, int depth, long max_age_ns, Clock clock, Outgoing outgoing, Decimator.Sink sink) {
+        policy_ = policy;
+        sink_ = sink;
+        clock_ = clock;
+        outgoing_ = outgoing;
+        max_age_ns_ = max_age_ns;
+        capacity_ = policy == Policy.LATEST_ONLY ? 1 : Math.max(1, depth);
+        stamp_ = new long[capacity_];
+        a_ = new double[capacity_];
+        b_ = new double[capacity_];
+        c_ = new double[capacity_];
+        d_ = new double[capacity_];
+    }
+
+    public void add(long stamp, double a, double b, double c, double d) {
+        long age = clock_.nowNs() - stamp;
+        age_ns_ = age;
+        if (age > max_seen_age_ns_) max_seen_age_ns_ = age;
+
+        boolean stale = age > max_age_ns_;
+        if (stale) stale_++;
+        boolean congested = checkCongested();
+
+        if (!stale && !congested) {
+            handOver();
+            sink_.onSample(stamp, a, b, c, d);
+            return;
+        }
+
+        if (policy_ == Policy.PUBLISH_ALL) {
+            if (congested) congested_out_++;
+            sink_.onSample(stamp, a, b, c, d);
+            return;
+        }
+
+        int count = count_;
+        if (count == capacity_) {
+            head_ = (head_ + 1) % capacity_;
+            count--;
+            dropped_++;
+        }
+        int i = (head_ + count) % capacity_;
+        stamp_[i] = stamp;
+        a_[i] = a;
+        b_[i] = b;
+        c_[i] = c;
+        d_[i] = d;
+        count_ = count + 1;
+    }
+
+    // Hands over the staged samples, oldest first, unless the outgoing connections are congested
+    public void flush() {
+        if (count_ == 0 || checkCongested()) return;
+        handOver();
+    }
+
+    private void handOver() {
+        while (count_ > 0) {
+            int i = head_;
+            head_ = (head_ + 1) % capacity_;
+            count_--;
+            sink_.onSample(stamp_[i], a_[i], b_[i], c_[i], d_[i]);
+        }
+    }
+
+    private boolean checkCongested() {
+        boolean congested = outgoing_ != null && outgoing_.isCongested();
+        congested_ = congested;
+        return congested;
+    }
+
+    public Policy getPolicy() {
+        return policy_;
+    }
+
+    // Samples held back, waiting for flush()
+    public int getStaged() {
+        return count_;
+    }
+
+    // As of the last sample or flush
+    public boolean isCongested() {
+        return congested_;
+    }
+
+    // Messages in the publisher's own queue, -1 if unknown
+    public int getOutgoingDepth() {
+        return outgoing_ != null ? outgoing_.depth() : -1;
+    }
+
+    // Samples older than max_age, published or not
+    public long getStale() {
+        return stale_;
+    }
+
+    public long getDropped() {
+        return dropped_;
+    }
+
+    public long getCongestedOut() {
+        return congested_out_;
+    }
+
+    public long getAgeNs() {
+        return age_ns_;
+    }
+
+    public long getMaxSeenAgeNs() {
+        return max_seen_age_ns_;
+    }
+}
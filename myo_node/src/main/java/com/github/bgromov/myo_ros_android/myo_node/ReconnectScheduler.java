@@ -0,0 +1,206 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import diagnostic_msgs.DiagnosticStatus;
+
+/**
+ * Reattaches known armbands by MAC address.
+ *
+ * Each MAC is tracked separately. Up to max_concurrent attach requests are outstanding at a time,
+ * an attempt that does not lead to onAttach() within the attempt timeout is retried with
+ * exponential backoff and jitter, and armbands that are already attached are skipped.
+ *
+ * The tick only runs while some armband is pending or being attached, start() resumes it. Attach
+ * requests are made outside the lock, the Hub may call back into onAttached() from them.
+ */
+class ReconnectScheduler implements DiagnosticsPublisher.Source {
+    private static final String TAG = "ReconnectScheduler";
+
+    public interface Attacher {
+        void attach(String mac);
+    }
+
+    private enum State { PENDING, ATTEMPTING, ATTACHED }
+
+    private static class Device {
+        State state = State.PENDING;
+        int attempts = 0;
+        long next_attempt_ms = 0;
+        long deadline_ms = 0;
+    }
+
+    private final Attacher attacher_;
+    private final int max_concurrent_;
+    private final long attempt_timeout_ms_;
+    private final long base_backoff_ms_;
+    private final long max_backoff_ms_;
+    private final long tick_ms_ = 100;
+
+    private final Map<String, Device> devices_ = new HashMap<>();
+    private final Random random_ = new Random();
+    private ScheduledExecutorService executor_;
+    private ScheduledFuture<?> tick_;
+    private int in_flight_ = 0;
+    private long attempts_ = 0;
+
+    private long started_ms_ = 0;
+    // From start() until every known Myo was attached, -1 while some are missing
+    private long all_connected_ms_ = -1;
+
+    public ReconnectScheduler(Attacher attacher, int max_concurrent, long attempt_timeout_ms,
+                              long base_backoff_ms, long max_backoff_ms) {
+        attacher_ = attacher;
+        max_concurrent_ = max_concurrent;
+        attempt_timeout_ms_ = attempt_timeout_ms;
+        base_backoff_ms_ = base_backoff_ms;
+        max_backoff_ms_ = max_backoff_ms;
+    }
+
+    public ReconnectScheduler(Attacher attacher) {
+        this(attacher, 3, 4000, 500, 30000);
+    }
+
+    public synchronized void start(Collection<String> macs) {
+        started_ms_ = now();
+        all_connected_ms_ = -1;
+        for (String mac : macs) {
+            if (!devices_.containsKey(mac)) devices_.put(mac, new Device());
+        }
+
+        if (executor_ == null) {
+            executor_ = Executors.newSingleThreadScheduledExecutor();
+        }
+        if (tick_ == null) {
+            tick_ = executor_.schedule(this::tick, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (executor_ != null) {
+            executor_.shutdownNow();
+            executor_ = null;
+            tick_ = null;
+        }
+    }
+
+    public synchronized void onAttached(String mac) {
+        Device d = devices_.get(mac);
+        if (d == null) {
+            d = new Device();
+            devices_.put(mac, d);
+        }
+        if (d.state == State.ATTEMPTING) in_flight_--;
+        d.state = State.ATTACHED;
+        d.attempts = 0;
+
+        if (all_connected_ms_ < 0 && allAttached()) {
+            all_connected_ms_ = now() - started_ms_;
+            Log.i(TAG, "All " + devices_.size() + " known Myos attached after " + all_connected_ms_ + " ms");
+        }
+    }
+
+    // The Myo was detached on purpose, stop trying to reattach it
+    public synchronized void remove(String mac) {
+        Device d = devices_.remove(mac);
+        if (d != null && d.state == State.ATTEMPTING) in_flight_--;
+    }
+
+    private boolean allAttached() {
+        for (Device d : devices_.values()) {
+            if (d.state != State.ATTACHED) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void report(DiagnosticsPublisher.Report r) {
+        r.setName("/idsia/myo/reconnect", "");
+
+        int attached = 0;
+        for (Device d : devices_.values()) {
+            if (d.state == State.ATTACHED) attached++;
+        }
+        r.add("known", devices_.size());
+        r.add("attached", attached);
+        r.add("in_flight", in_flight_);
+        r.add("attempts_total", attempts_);
+        r.add("time_to_all_connected_ms", all_connected_ms_);
+        if (attached < devices_.size()) {
+            r.level(DiagnosticStatus.WARN, (devices_.size() - attached) + " known Myos not attached");
+        }
+    }
+
+    private void tick() {
+        List<String> attach = new ArrayList<>();
+        synchronized (this) {
+            if (executor_ == null) return;
+            select(now(), attach);
+
+            // Paused until start() brings new armbands
+            boolean waiting = in_flight_ > 0;
+            for (Device d : devices_.values()) {
+                if (d.state == State.PENDING) waiting = true;
+            }
+            tick_ = waiting ? executor_.schedule(this::tick, tick_ms_, TimeUnit.MILLISECONDS) : null;
+        }
+
+        for (String mac : attach) {
+            try {
+                attacher_.attach(mac);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "Attach request for [" + mac + "] failed", ex);
+            }
+        }
+    }
+
+    // Times out attempts and picks the armbands to attach now, holding the lock
+    private void select(long now, List<String> attach) {
+        for (Map.Entry<String, Device> e : devices_.entrySet()) {
+            Device d = e.getValue();
+            if (d.state == State.ATTEMPTING && now >= d.deadline_ms) {
+                in_flight_--;
+                d.state = State.PENDING;
+                d.next_attempt_ms = now + backoff(d.attempts);
+            }
+        }
+
+        for (Map.Entry<String, Device> e : devices_.entrySet()) {
+            if (in_flight_ >= max_concurrent_) break;
+
+            Device d = e.getValue();
+            if (d.state != State.PENDING || now < d.next_attempt_ms) continue;
+
+            d.state = State.ATTEMPTING;
+            d.attempts++;
+            d.deadline_ms = now + attempt_timeout_ms_;
+            in_flight_++;
+            attempts_++;
+
+            Log.i(TAG, "Attempt " + d.attempts + " to connect to [" + e.getKey() + "]");
+            attach.add(e.getKey());
+        }
+    }
+
+    // Exponential backoff with +/-50% jitter
+    private long backoff(int attempts) {
+        long delay = base_backoff_ms_ << Math.min(attempts - 1, 16);
+        delay = Math.min(delay, max_backoff_ms_);
+        return delay / 2 + (long) (random_.nextDouble() * delay);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.ros.time.TimeProvider;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ROS time extrapolated from the monotonic clock, rebased on the time provider once a second.
+ *
+ * Every read of a TimeProvider allocates a Time, this reads it once a second instead of once per
+ * sample. Not thread-safe, each thread that stamps samples keeps its own instance.
+ */
+class RosClock {
+    private static final long REBASE_PERIOD_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final TimeProvider time_provider_;
+    private long base_ros_ns_ = 0;
+    private long base_mono_ns_ = 0;
+    private long next_rebase_ns_ = Long.MIN_VALUE;
+
+    public RosClock(TimeProvider time_provider) {
+        time_provider_ = time_provider;
+    }
+
+    // ROS time [ns]
+    public long nowNs() {
+        long mono_ns = System.nanoTime();
+        if (mono_ns >= next_rebase_ns_) {
+            base_ros_ns_ = time_provider_.getCurrentTime().totalNsecs();
+            base_mono_ns_ = mono_ns;
+            next_rebase_ns_ = mono_ns + REBASE_PERIOD_NS;
+            return base_ros_ns_;
+        }
+        return base_ros_ns_ + mono_ns - base_mono_ns_;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import org.ros.message.Time;
+
+/**
+ * In-place helpers for {@link Time}, so message stamps can be updated without allocating.
+ */
+final class RosTime {
+    private static final long NSECS_PER_SEC = 1000000000L;
+
+    private RosTime() {}
+
+    public static void setNanos(Time out, long nsecs) {
+        out.secs = (int) (nsecs / NSECS_PER_SEC);
+        out.nsecs = (int) (nsecs % NSECS_PER_SEC);
+    }
+}
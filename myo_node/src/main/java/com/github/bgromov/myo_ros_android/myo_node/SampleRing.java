@@ -0,0 +1,191 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of Myo samples.
+ *
+ * The Hub callback thread (the BLE callback thread for EMG) is the only producer and a node's
+ * publisher thread the only consumer, so each side owns one index and the other side only reads
+ * it. Samples are stored in parallel primitive arrays, nothing is allocated once the ring is
+ * constructed.
+ */
+class SampleRing {
+    // Sample kinds
+    public static final int ORIENTATION = 0;
+    public static final int GYRO = 1;
+    public static final int ACCEL = 2;
+    public static final int POSE = 3;
+    public static final int ARM_SYNC = 4;
+    public static final int ARM_UNSYNC = 5;
+    public static final int UNLOCK = 6;
+    public static final int LOCK = 7;
+    public static final int KINDS = 8;
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    public enum OverflowPolicy {
+        // Reject the incoming sample, the Hub thread never waits
+        DROP_NEWEST,
+        // Wait up to the block timeout for the publisher to catch up, then drop
+        BLOCK;
+
+        public static OverflowPolicy fromString(String s, OverflowPolicy def) {
+            for (OverflowPolicy p : values()) {
+                if (p.name().equalsIgnoreCase(s)) return p;
+            }
+            return def;
+        }
+    }
+
+    public interface Consumer {
+        void onSample(int kind, long timestamp, long arrival_ns, double a, double b, double c, double d);
+    }
+
+    private final int mask_;
+    private final int[] kind_;
+    private final long[] timestamp_;
+    private final long[] arrival_ns_;
+    private final double[] a_;
+    private final double[] b_;
+    private final double[] c_;
+    private final double[] d_;
+
+    // Written by the consumer only
+    private volatile long head_ = 0;
+    // Written by the producer only
+    private volatile long tail_ = 0;
+
+    private volatile Thread waiter_;
+
+    // Never block before the consumer runs, the node sets the configured policy once started
+    private volatile OverflowPolicy policy_ = OverflowPolicy.DROP_NEWEST;
+    private volatile long block_timeout_ns_ = TimeUnit.MILLISECONDS.toNanos(5);
+
+    // Producer-side counters
+    private volatile long offered_ = 0;
+    private volatile long dropped_ = 0;
+    private volatile long blocked_ = 0;
+    private volatile int high_water_ = 0;
+
+    public SampleRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask_ = capacity - 1;
+        kind_ = new int[capacity];
+        timestamp_ = new long[capacity];
+        arrival_ns_ = new long[capacity];
+        a_ = new double[capacity];
+        b_ = new double[capacity];
+        c_ = new double[capacity];
+        d_ = new double[capacity];
+    }
+
+    public SampleRing() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy, long block_timeout_ns) {
+        policy_ = policy;
+        block_timeout_ns_ = block_timeout_ns;
+    }
+
+    // Producer only. Returns false if the sample was dropped.
+    public boolean offer(int kind, long timestamp, long arrival_ns, double a, double b, double c, double d) {
+        offered_++;
+
+        long t = tail_;
+        if (t - head_ > mask_ && !awaitSpace(t)) {
+            dropped_++;
+            return false;
+        }
+
+        int i = (int) (t & mask_);
+        kind_[i] = kind;
+        timestamp_[i] = timestamp;
+        arrival_ns_[i] = arrival_ns;
+        a_[i] = a;
+        b_[i] = b;
+        c_[i] = c;
+        d_[i] = d;
+        tail_ = t + 1;
+
+        int depth = (int) (t + 1 - head_);
+        if (depth > high_water_) high_water_ = depth;
+
+        Thread w = waiter_;
+        if (w != null) LockSupport.unpark(w);
+        return true;
+    }
+
+    private boolean awaitSpace(long t) {
+        if (policy_ != OverflowPolicy.BLOCK) return false;
+
+        blocked_++;
+        long deadline = System.nanoTime() + block_timeout_ns_;
+        while (t - head_ > mask_) {
+            if (System.nanoTime() >= deadline) return false;
+            LockSupport.parkNanos(50000);
+        }
+        return true;
+    }
+
+    // Consumer only. Hands at most max samples to the consumer, returns the number drained.
+    public int drain(Consumer consumer, int max) {
+        long h = head_;
+        long available = tail_ - h;
+        int n = (int) Math.min(available, max);
+        for (int k = 0; k < n; k++) {
+            int i = (int) ((h + k) & mask_);
+            consumer.onSample(kind_[i], timestamp_[i], arrival_ns_[i], a_[i], b_[i], c_[i], d_[i]);
+            // Release the slot right away so a blocked producer can proceed
+            head_ = h + k + 1;
+        }
+        return n;
+    }
+
+    // Consumer only. Parks until a sample is offered or the timeout expires.
+    public void await(long timeout_ns) {
+        waiter_ = Thread.currentThread();
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, timeout_ns);
+        }
+        waiter_ = null;
+    }
+
+    // Consumer only. A consumer that serves several rings registers its thread on each of them once
+    // and parks itself while they are all empty.
+    public void setWaiter(Thread waiter) {
+        waiter_ = waiter;
+    }
+
+    public boolean isEmpty() {
+        return head_ == tail_;
+    }
+
+    public int depth() {
+        return (int) (tail_ - head_);
+    }
+
+    public int capacity() {
+        return mask_ + 1;
+    }
+
+    public long getOffered() {
+        return offered_;
+    }
+
+    public long getDropped() {
+        return dropped_;
+    }
+
+    public long getBlocked() {
+        return blocked_;
+    }
+
+    public int getHighWater() {
+        return high_water_;
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Maps the Android sensor clock (the elapsedRealtimeNanos() base of SensorEvent.timestamp) to ROS
+ * time with a continuously estimated offset.
+ *
+ * Both clocks can be read directly, so every reading is a sensor clock bracket around one ROS
+ * clock read: the offset is ROS time minus the bracket midpoint, accurate to half the bracket
+ * width. Readings whose bracket is much wider than usual (the thread was preempted in between)
+ * are rejected, the others are low-pass filtered into the offset. The two clocks drift apart by
+ * no more than the ROS clock's NTP slew, which the filter follows with a lag well below a
+ * millisecond; a step of the ROS clock is taken over after a few consistent readings.
+ *
+ * Readings must be added from a single thread, {@link #toRos} can be called from any thread.
+ * Nothing is allocated.
+ */
+class SensorClockMapper {
+    public static final long DEFAULT_STEP_NS = 5000000L;
+    // Consecutive readings beyond the step threshold before the offset jumps
+    private static final int STEP_READINGS = 3;
+    // Weight of a new reading in the offset, 1 / 2^GAIN_SHIFT
+    private static final int GAIN_SHIFT = 4;
+    // Slack on top of twice the typical bracket width before a reading is rejected
+    private static final long WIDTH_SLACK_NS = 20000L;
+
+    private final long step_ns_;
+
+    private volatile long offset_ns_ = 0;
+    private volatile boolean ready_ = false;
+
+    // Writer thread only
+    private long width_ns_ = 0;
+    private int outliers_ = 0;
+
+    private volatile long readings_ = 0;
+    private volatile long rejected_ = 0;
+    private volatile long steps_ = 0;
+
+    public SensorClockMapper(long step_ns) {
+        step_ns_ = step_ns;
+    }
+
+    public SensorClockMapper() {
+        this(DEFAULT_STEP_NS);
+    }
+
+    // One ROS clock read ros_ns taken between the sensor clock reads before_ns and after_ns
+    public void update(long before_ns, long ros_ns, long after_ns) {
+        long width = after_ns - before_ns;
+        if (width < 0) return;
+        readings_++;
+
+        // Typical bracket width, follows a new minimum at once and slower bracket widths slowly
+        boolean wide = ready_ && width > 2 * width_ns_ + WIDTH_SLACK_NS;
+        width_ns_ = width < width_ns_ || !ready_ ? width : width_ns_ + (width - width_ns_) / 32;
+        if (wide) {
+            rejected_++;
+            return;
+        }
+
+        long offset = ros_ns - (before_ns + width / 2);
+        if (!ready_) {
+            offset_ns_ = offset;
+            ready_ = true;
+            return;
+        }
+
+        long err = offset - offset_ns_;
+        if (Math.abs(err) > step_ns_) {
+            if (++outliers_ >= STEP_READINGS) {
+                outliers_ = 0;
+                offset_ns_ = offset;
+                steps_++;
+            }
+            return;
+        }
+        outliers_ = 0;
+        offset_ns_ += err >> GAIN_SHIFT;
+    }
+
+    public boolean isReady() {
+        return ready_;
+    }
+
+    // Sensor clock [ns] to ROS time [ns]
+    public long toRos(long sensor_ns) {
+        return sensor_ns + offset_ns_;
+    }
+
+    // ROS time minus sensor clock [ns]
+    public long getOffsetNs() {
+        return offset_ns_;
+    }
+
+    // Half the typical bracket width, the accuracy of a single reading [ns]
+    public long getUncertaintyNs() {
+        return width_ns_ / 2;
+    }
+
+    public long getReadings() {
+        return readings_;
+    }
+
+    public long getRejected() {
+        return rejected_;
+    }
+
+    // Times the ROS clock stepped and the offset was reset
+    public long getSteps() {
+        return steps_;
+    }
+}
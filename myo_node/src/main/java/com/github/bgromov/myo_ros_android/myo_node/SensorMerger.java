@@ -0,0 +1,206 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Merges the accelerometer, gyroscope and rotation vector streams of the phone into complete IMU
+ * samples.
+ *
+ * Each stream is buffered with its event times. The fastest stream drives the output: for every
+ * one of its events the other streams are interpolated to that event time (linearly for vectors,
+ * normalized-linearly for the rotation), once they have a sample at or after it. If a stream
+ * lags more than max_delay behind, its sample closest in time is used instead. Single-threaded,
+ * nothing is allocated per event.
+ */
+class SensorMerger {
+    public static final int ACCEL = 0;
+    public static final int GYRO = 1;
+    public static final int ROTATION = 2;
+    public static final int STREAMS = 3;
+
+    public interface Sink {
+        // present is a mask of (1 << stream) for the streams that had data; rotation is x, y, z, w
+        void onMerged(long time_ns, int present, double[] accel, double[] gyro, double[] rotation);
+    }
+
+    public static final int DEFAULT_CAPACITY = 32;
+    // Weight of a new interval in the event interval average
+    private static final double INTERVAL_ALPHA = 0.05;
+
+    private final Sink sink_;
+    private final long max_delay_ns_;
+    private final int capacity_;
+    private final int mask_;
+    private final boolean[] enabled_ = new boolean[STREAMS];
+
+    // Per stream ring of event times and 4 values each
+    private final long[][] times_;
+    private final double[][] values_;
+    private final long[] count_ = new long[STREAMS];
+    private final double[] interval_ns_ = new double[STREAMS];
+
+    // Output times still waiting for the other streams
+    private final long[] pending_;
+    private long pending_head_ = 0;
+    private long pending_tail_ = 0;
+    // Newest output time queued, the driver can change while the first bursts come in
+    private long last_pending_ns_ = Long.MIN_VALUE;
+
+    private final double[][] out_ = { new double[3], new double[3], new double[4] };
+
+    private long merged_ = 0;
+    private long late_ = 0;
+
+    // capacity (a power of two) bounds the events buffered per stream, it must cover the bursts
+    // delivered by batching sensors
+    public SensorMerger(int capacity, long max_delay_ns, Sink sink) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        capacity_ = capacity;
+        mask_ = capacity - 1;
+        times_ = new long[STREAMS][capacity];
+        values_ = new double[STREAMS][4 * capacity];
+        pending_ = new long[capacity];
+        max_delay_ns_ = max_delay_ns;
+        sink_ = sink;
+    }
+
+    public SensorMerger(long max_delay_ns, Sink sink) {
+        this(DEFAULT_CAPACITY, max_delay_ns, sink);
+    }
+
+    public void setEnabled(int stream, boolean enabled) {
+        enabled_[stream] = enabled;
+    }
+
+    public void add(int stream, long time_ns, double a, double b, double c, double d) {
+        long n = count_[stream];
+        if (n > 0) {
+            long last = times_[stream][(int) ((n - 1) & mask_)];
+            if (time_ns <= last) return; // Out of order or duplicate
+            double interval = time_ns - last;
+            interval_ns_[stream] = n == 1 ? interval : interval_ns_[stream] + INTERVAL_ALPHA * (interval - interval_ns_[stream]);
+        }
+
+        int i = (int) (n & mask_);
+        times_[stream][i] = time_ns;
+        double[] v = values_[stream];
+        v[4 * i] = a;
+        v[4 * i + 1] = b;
+        v[4 * i + 2] = c;
+        v[4 * i + 3] = d;
+        count_[stream] = n + 1;
+
+        if (stream == driver() && time_ns > last_pending_ns_) {
+            if (pending_tail_ - pending_head_ == capacity_) {
+                // Hopelessly behind, give up on the oldest
+                pending_head_++;
+                late_++;
+            }
+            pending_[(int) (pending_tail_++ & mask_)] = time_ns;
+            last_pending_ns_ = time_ns;
+        }
+
+        drain(time_ns);
+    }
+
+    // The enabled stream with the shortest event interval, or the first to deliver two events
+    private int driver() {
+        int best = -1;
+        for (int s = 0; s < STREAMS; s++) {
+            if (!enabled_[s] || count_[s] < 2) continue;
+            if (best < 0 || interval_ns_[s] < interval_ns_[best]) best = s;
+        }
+        if (best >= 0) return best;
+        for (int s = 0; s < STREAMS; s++) {
+            if (enabled_[s] && count_[s] > 0) return s;
+        }
+        return -1;
+    }
+
+    private void drain(long now_ns) {
+        while (pending_head_ != pending_tail_) {
+            long t = pending_[(int) (pending_head_ & mask_)];
+            boolean timed_out = now_ns - t > max_delay_ns_;
+
+            if (!timed_out) {
+                for (int s = 0; s < STREAMS; s++) {
+                    if (enabled_[s] && newest(s) < t) return;
+                }
+            }
+
+            pending_head_++;
+            emit(t);
+        }
+    }
+
+    private long newest(int stream) {
+        long n = count_[stream];
+        return n > 0 ? times_[stream][(int) ((n - 1) & mask_)] : Long.MIN_VALUE;
+    }
+
+    private void emit(long t) {
+        int present = 0;
+        for (int s = 0; s < STREAMS; s++) {
+            if (enabled_[s] && count_[s] > 0) {
+                interpolate(s, t, out_[s]);
+                present |= 1 << s;
+            } else {
+                for (int k = 0; k < out_[s].length; k++) out_[s][k] = 0;
+            }
+        }
+        merged_++;
+        sink_.onMerged(t, present, out_[ACCEL], out_[GYRO], out_[ROTATION]);
+    }
+
+    private void interpolate(int stream, long t, double[] out) {
+        long[] times = times_[stream];
+        double[] v = values_[stream];
+        long n = count_[stream];
+        long oldest = Math.max(0, n - capacity_);
+
+        // Newest sample at or before t, searching backwards
+        long k = n - 1;
+        while (k > oldest && times[(int) (k & mask_)] > t) k--;
+
+        int i0 = (int) (k & mask_);
+        if (k == n - 1 || times[i0] > t) {
+            // No bracketing pair, hold the closest sample
+            copy(v, i0, out);
+            return;
+        }
+
+        int i1 = (int) ((k + 1) & mask_);
+        double f = (double) (t - times[i0]) / (times[i1] - times[i0]);
+
+        if (stream == ROTATION) {
+            // Normalized lerp along the shorter arc
+            double dot = v[4 * i0] * v[4 * i1] + v[4 * i0 + 1] * v[4 * i1 + 1]
+                    + v[4 * i0 + 2] * v[4 * i1 + 2] + v[4 * i0 + 3] * v[4 * i1 + 3];
+            double sign = dot < 0 ? -1 : 1;
+            double norm = 0;
+            for (int j = 0; j < 4; j++) {
+                out[j] = (1 - f) * v[4 * i0 + j] + f * sign * v[4 * i1 + j];
+                norm += out[j] * out[j];
+            }
+            norm = Math.sqrt(norm);
+            for (int j = 0; j < 4; j++) out[j] /= norm;
+        } else {
+            for (int j = 0; j < out.length; j++) {
+                out[j] = (1 - f) * v[4 * i0 + j] + f * v[4 * i1 + j];
+            }
+        }
+    }
+
+    private static void copy(double[] v, int i, double[] out) {
+        for (int j = 0; j < out.length; j++) out[j] = v[4 * i + j];
+    }
+
+    public long getMerged() {
+        return merged_;
+    }
+
+    // Output samples dropped because the other streams lagged too far behind
+    public long getLate() {
+        return late_;
+    }
+}
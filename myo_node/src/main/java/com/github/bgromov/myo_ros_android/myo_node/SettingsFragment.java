@@ -21,11 +21,8 @@ import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.thalmic.myo.Hub;
 
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -57,13 +54,11 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         PreferenceScreen screen = getPreferenceScreen();
         SharedPreferences sharedPreferences = screen.getSharedPreferences();
 
-        Gson gson = new Gson();
-        Type myoPropertiesType = new TypeToken<HashMap<String, MyoProperties>>(){}.getType();
-        HashMap<String, MyoProperties> myoSettings = gson.fromJson(sharedPreferences.getString("myos", ""), myoPropertiesType);
+        MyoRegistry registry = MyoRegistryPreferences.readOnly(sharedPreferences);
 
         // TODO Add button 'Add Myo'
         // No settings found
-        if (myoPropertiesType == null) return;
+        if (registry.size() == 0) return;
 
 
         Map<String, ?> allPrefs = sharedPreferences.getAll();
@@ -76,15 +71,18 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
         List<String> optionsList = new ArrayList<>();
         List<String> valuesList = new ArrayList<>();
 
-        for (Map.Entry<String, MyoProperties> e: myoSettings.entrySet()) {
-            optionsList.add(e.getValue().getName() + " [" + e.getKey() + "]");
-            valuesList.add(e.getKey());
+        int[] ids = registry.ids();
+        for (int i : ids) {
+            String mac = MyoRegistry.unpackMac(registry.getMac(i));
+            optionsList.add(registry.getName(i) + " [" + mac + "]");
+            valuesList.add(mac);
+            macsToNames.put(mac, registry.getName(i));
         }
 
-        for (Map.Entry<String, MyoProperties> e: myoSettings.entrySet()) {
-            String mac = e.getKey();
-            String name = e.getValue().getName();
-            Integer id = e.getValue().getId();
+        for (int i = 0; i < ids.length; i++) {
+            String mac = valuesList.get(i);
+            String name = registry.getName(ids[i]);
+            Integer id = ids[i];
 
             ListPreference p = new ListPreference(screen.getContext());
             CharSequence[] ents = optionsList.toArray(new CharSequence[optionsList.size()]);
@@ -93,7 +91,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 //            p.setKey(prefix + id.toString());
             p.setEntries(ents);
             p.setEntryValues(vals);
-            p.setValueIndex(id - 1);
+            p.setValueIndex(i);
 
             p.setTitle("Myo " + id.toString());
 //            p.setSummary(macsToNames.get(p.getValue()) + " [" + p.getValue() + "]");
@@ -138,6 +136,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (!MyoRegistryPreferences.isEntry(key)) return;
         syncPreferences();
     }
 }
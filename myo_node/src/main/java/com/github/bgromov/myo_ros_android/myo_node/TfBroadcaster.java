@@ -0,0 +1,256 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+import android.util.Log;
+
+import org.ros.concurrent.CancellableLoop;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.parameter.ParameterTree;
+import org.ros.node.topic.Publisher;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import diagnostic_msgs.DiagnosticStatus;
+
+import geometry_msgs.TransformStamped;
+import tf2_msgs.TFMessage;
+
+/**
+ * Shared /tf broadcaster for all Myo nodes and the phone IMU.
+ *
+ * Transforms are collected from any thread and published together as one TFMessage, either every
+ * tick or as soon as a batch is full, instead of one single-transform message per sample.
+ * Producers only hold the lock to append to the pending batch: a flush swaps it for the spare one
+ * under the lock and builds and publishes the message outside of it. A batch that fills up while
+ * the previous one is still being published grows into its spare room, beyond that transforms
+ * are dropped and counted.
+ */
+public class TfBroadcaster extends AbstractNodeMain implements DiagnosticsPublisher.Source {
+    private static final String TAG = "TfBroadcaster";
+    // Must exceed the rosjava publisher queue, see MessagePool
+    private static final int POOL_SIZE = MessagePool.DEFAULT_SIZE;
+
+    private ConnectedNode node_;
+    private Publisher<TFMessage> pub_tf_;
+
+    private long period_ms_ = 10;
+    private int max_batch_ = 32;
+
+    private static final class Batch {
+        final String[] parent_;
+        final String[] child_;
+        final long[] stamp_;
+        final double[] translation_;
+        final double[] rotation_;
+        int count_ = 0;
+
+        Batch(int capacity) {
+            parent_ = new String[capacity];
+            child_ = new String[capacity];
+            stamp_ = new long[capacity];
+            translation_ = new double[3 * capacity];
+            rotation_ = new double[4 * capacity];
+        }
+    }
+
+    // Pending transforms, guarded by this. The spare is only touched by the flush holding publish_lock_.
+    private Batch pending_;
+    private Batch spare_;
+    private final ReentrantLock publish_lock_ = new ReentrantLock();
+
+    // Ring of outgoing messages, each with its own lazily created transforms. Guarded by publish_lock_.
+    private TFMessage[] messages_;
+    private TransformStamped[][] transforms_;
+    private int next_ = 0;
+
+    // Read by the diagnostics thread
+    private volatile long transforms_sent_ = 0;
+    private volatile long messages_sent_ = 0;
+    private volatile long dropped_ = 0;
+
+    // Previously reported values, diagnostics thread only
+    private long reported_transforms_ = 0;
+    private long reported_messages_ = 0;
+    private long reported_dropped_ = 0;
+
+    @Override
+    public GraphName getDefaultNodeName() {
+        return GraphName.of("myo_ros_android/tf_broadcaster");
+    }
+
+    @Override
+    public void onStart(ConnectedNode connectedNode) {
+        ParameterTree params = connectedNode.getParameterTree();
+        period_ms_ = params.getInteger("/idsia/tf/period_ms", (int) period_ms_);
+        if (period_ms_ < 1) {
+            // The flush loop would spin without sleeping
+            Log.w(TAG, "Ignoring /idsia/tf/period_ms of " + period_ms_ + ", using 1 ms");
+            period_ms_ = 1;
+        }
+        max_batch_ = Math.max(1, params.getInteger("/idsia/tf/max_batch", max_batch_));
+
+        Publisher<TFMessage> pub = connectedNode.newPublisher("/tf", TFMessage._TYPE);
+
+        publish_lock_.lock();
+        try {
+            messages_ = new TFMessage[POOL_SIZE];
+            transforms_ = new TransformStamped[POOL_SIZE][2 * max_batch_];
+            for (int i = 0; i < POOL_SIZE; i++) {
+                messages_[i] = pub.newMessage();
+            }
+            spare_ = new Batch(2 * max_batch_);
+        } finally {
+            publish_lock_.unlock();
+        }
+
+        synchronized (this) {
+            pending_ = new Batch(2 * max_batch_);
+            pub_tf_ = pub;
+            node_ = connectedNode;
+        }
+
+        Log.i(TAG, "Batching /tf every " + period_ms_ + " ms or " + max_batch_ + " transforms");
+
+        node_.executeCancellableLoop(new CancellableLoop() {
+            @Override
+            protected void loop() throws InterruptedException {
+                Thread.sleep(period_ms_);
+                flush();
+            }
+        });
+    }
+
+    @Override
+    public void onShutdown(Node node) {
+        synchronized (this) {
+            node_ = null;
+        }
+        long transforms = transforms_sent_;
+        long messages = messages_sent_;
+        Log.i(TAG, "Sent " + transforms + " transforms in " + messages + " messages, saved "
+                + (transforms - messages) + " messages, dropped " + dropped_);
+    }
+
+    // Queues a transform, stamp in ROS time [ns]. Dropped if the broadcaster is not running.
+    public void sendTransform(String parent, String child, long stamp,
+                              double tx, double ty, double tz,
+                              double qx, double qy, double qz, double qw) {
+        boolean full;
+        synchronized (this) {
+            if (node_ == null) return;
+
+            Batch b = pending_;
+            int i = b.count_;
+            if (i == b.stamp_.length) {
+                dropped_++;
+                return;
+            }
+            b.count_ = i + 1;
+            b.parent_[i] = parent;
+            b.child_[i] = child;
+            b.stamp_[i] = stamp;
+            b.translation_[3 * i] = tx;
+            b.translation_[3 * i + 1] = ty;
+            b.translation_[3 * i + 2] = tz;
+            b.rotation_[4 * i] = qx;
+            b.rotation_[4 * i + 1] = qy;
+            b.rotation_[4 * i + 2] = qz;
+            b.rotation_[4 * i + 3] = qw;
+            full = b.count_ >= max_batch_;
+        }
+
+        // A flush already under way leaves the rest to the next tick
+        if (full && publish_lock_.tryLock()) {
+            try {
+                publishPending();
+            } finally {
+                publish_lock_.unlock();
+            }
+        }
+    }
+
+    public void flush() {
+        publish_lock_.lock();
+        try {
+            publishPending();
+        } finally {
+            publish_lock_.unlock();
+        }
+    }
+
+    // Holding publish_lock_
+    private void publishPending() {
+        Batch batch;
+        ConnectedNode node;
+        synchronized (this) {
+            node = node_;
+            if (node == null || pending_.count_ == 0) return;
+            batch = pending_;
+            pending_ = spare_;
+            spare_ = batch;
+        }
+
+        int slot = next_;
+        next_ = (next_ + 1) % POOL_SIZE;
+
+        TFMessage msg = messages_[slot];
+        TransformStamped[] cache = transforms_[slot];
+        List<TransformStamped> list = msg.getTransforms();
+        list.clear();
+
+        int count = batch.count_;
+        for (int i = 0; i < count; i++) {
+            TransformStamped tfs = cache[i];
+            if (tfs == null) {
+                tfs = node.getTopicMessageFactory().newFromType(TransformStamped._TYPE);
+                cache[i] = tfs;
+            }
+
+            tfs.getHeader().setFrameId(batch.parent_[i]);
+            RosTime.setNanos(tfs.getHeader().getStamp(), batch.stamp_[i]);
+            tfs.setChildFrameId(batch.child_[i]);
+
+            geometry_msgs.Vector3 t = tfs.getTransform().getTranslation();
+            t.setX(batch.translation_[3 * i]);
+            t.setY(batch.translation_[3 * i + 1]);
+            t.setZ(batch.translation_[3 * i + 2]);
+
+            geometry_msgs.Quaternion q = tfs.getTransform().getRotation();
+            q.setX(batch.rotation_[4 * i]);
+            q.setY(batch.rotation_[4 * i + 1]);
+            q.setZ(batch.rotation_[4 * i + 2]);
+            q.setW(batch.rotation_[4 * i + 3]);
+
+            list.add(tfs);
+        }
+        batch.count_ = 0;
+
+        pub_tf_.publish(msg);
+
+        transforms_sent_ += count;
+        messages_sent_++;
+    }
+
+    @Override
+    public void report(DiagnosticsPublisher.Report r) {
+        r.setName("/tf", "");
+
+        long transforms = transforms_sent_;
+        long messages = messages_sent_;
+        long dropped = dropped_;
+        r.add("transforms_per_s", r.rate(transforms, reported_transforms_));
+        r.add("messages_per_s", r.rate(messages, reported_messages_));
+        // Messages that one-transform-per-message publishing would have needed on top
+        r.add("messages_saved_total", transforms - messages);
+        r.add("dropped", dropped - reported_dropped_);
+        if (dropped > reported_dropped_) {
+            r.level(DiagnosticStatus.WARN, "Dropping transforms, batches fill up faster than they are published");
+        }
+        reported_transforms_ = transforms;
+        reported_messages_ = messages;
+        reported_dropped_ = dropped;
+    }
+}
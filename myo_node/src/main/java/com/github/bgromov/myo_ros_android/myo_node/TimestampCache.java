@@ -0,0 +1,50 @@
+package com.github.bgromov.myo_ros_android.myo_node;
+
+/**
+ * Small ring of Myo timestamp -> ROS time pairs, both primitive longs.
+ *
+ * The SDK delivers orientation, gyro and accel of one sample as consecutive callbacks carrying
+ * the same timestamp, so only the last few entries are ever looked up. A linear scan over a few
+ * slots is faster than hashing and neither allocates nor boxes.
+ */
+class TimestampCache {
+    public static final int DEFAULT_SIZE = 8;
+
+    private final long[] keys_;
+    private final long[] values_;
+    private int next_ = 0;
+    private int size_ = 0;
+
+    public TimestampCache(int size) {
+        keys_ = new long[size];
+        values_ = new long[size];
+    }
+
+    public TimestampCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    // Returns the index of the key or -1, newest entries are checked first
+    private int find(long key) {
+        int i = next_;
+        for (int k = 0; k < size_; k++) {
+            i = (i == 0 ? keys_.length : i) - 1;
+            if (keys_[i] == key) return i;
+        }
+        return -1;
+    }
+
+    // Returns the cached value or def
+    public long get(long key, long def) {
+        int i = find(key);
+        return i >= 0 ? values_[i] : def;
+    }
+
+    // Overwrites the oldest entry
+    public void put(long key, long value) {
+        keys_[next_] = key;
+        values_[next_] = value;
+        next_ = (next_ + 1) % keys_.length;
+        if (size_ < keys_.length) size_++;
+    }
+}